@@ -0,0 +1,72 @@
+package memcachedsession.jetty;
+
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the encode/decode cost of session infos written with Java
+ * serialization and with the compact codec. The encoded size of each is
+ * printed when the trial starts. Run it with
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar SessionInfoCodecBenchmark -t 1
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionInfoCodecBenchmark {
+
+	@Param({ "java", "compact" })
+	public String codec;
+
+	@Param({ "10" })
+	public int keys;
+
+	private Transcoder<Object> _transcoder;
+	private MemcachedSessionInfo _sessionInfo;
+	private CachedData _data;
+
+	@Setup
+	public void setUp() {
+		_transcoder = "compact".equals(codec) ? new MemcachedSessionTranscoder(new CompactSessionInfoCodec()) : new MemcachedSessionTranscoder();
+
+		_sessionInfo = new MemcachedSessionInfo();
+		_sessionInfo.setCreated(System.currentTimeMillis());
+		_sessionInfo.setAccessed(_sessionInfo.getCreated() + 12345);
+		_sessionInfo.setMaxIdleMs(1800000);
+		for (int i = 0; i < keys; i++) {
+			_sessionInfo.getKeys().add("attribute" + i);
+		}
+
+		_data = _transcoder.encode(_sessionInfo);
+		System.out.println(codec + " session info with " + keys + " keys: " + _data.getData().length + " bytes");
+	}
+
+	@Benchmark
+	public CachedData encode() {
+		return _transcoder.encode(_sessionInfo);
+	}
+
+	@Benchmark
+	public Object decode() {
+		return _transcoder.decode(_data);
+	}
+}
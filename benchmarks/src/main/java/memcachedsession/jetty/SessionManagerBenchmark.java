@@ -0,0 +1,212 @@
+package memcachedsession.jetty;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.ContextHandler;
+import org.mortbay.jetty.servlet.SessionHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the session manager operations a request performs, against an
+ * {@link EmbeddedMemcached} in the same JVM. Each attribute operation is
+ * measured as a request issues it: the session is looked up, used and
+ * completed, so buffered writes are included.
+ * <p>
+ * {@link #main(String[])} runs every benchmark with 1, 4 and 16 threads
+ * unless a thread count is given with -t; other JMH options are passed on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionManagerBenchmark {
+
+	private static final int[] THREADS = { 1, 4, 16 };
+
+	@Param({ "1000", "10000" })
+	public int sessions;
+
+	@Param({ "100", "4096" })
+	public int attributeSize;
+
+	private EmbeddedMemcached _memcached;
+	private Server _server;
+	private MemcachedSessionManager _sessionManager;
+	private String[] _ids;
+	// the sessions created by the threads, removed after each iteration so the store does not grow with the run
+	private final Queue<String> _created = new ConcurrentLinkedQueue<String>();
+	private byte[] _value;
+	private final HttpServletRequest _request = new TwoSessionInstancesTest.TestHttpRequest();
+
+	@State(Scope.Thread)
+	public static class Requests {
+		private final Random _random = new Random();
+
+		String nextId(SessionManagerBenchmark benchmark) {
+			return benchmark._ids[_random.nextInt(benchmark._ids.length)];
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Removal {
+		HttpSession session;
+
+		@Setup(Level.Invocation)
+		public void create(SessionManagerBenchmark benchmark) {
+			session = benchmark.createSession();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void start() throws Exception {
+		_memcached = new EmbeddedMemcached(0);
+		_memcached.start();
+
+		MemcachedClientFactory clientFactory = new MemcachedClientFactory();
+		clientFactory.setServers(_memcached.getServers());
+
+		_server = new Server();
+		MemcachedSessionIdManager idManager = new MemcachedSessionIdManager(_server);
+		idManager.setClientFactory(clientFactory);
+		_server.setSessionIdManager(idManager);
+		_sessionManager = new MemcachedSessionManager();
+		_sessionManager.setClientFactory(clientFactory);
+		_sessionManager.setIdManager(idManager);
+		// passes are run by the scavenge benchmark only, and always complete
+		_sessionManager.setScavengePeriodMs(0);
+		_sessionManager.setScavengeBudgetMs(0);
+
+		SessionHandler handler = new SessionHandler(_sessionManager);
+		_sessionManager.setSessionHandler(handler);
+		ContextHandler context = new ContextHandler();
+		context.setHandler(handler);
+		_server.setHandler(context);
+		_server.start();
+
+		_value = new byte[attributeSize];
+		_ids = new String[sessions];
+		for (int i = 0; i < sessions; i++) {
+			_ids[i] = createSession().getId();
+		}
+	}
+
+	/**
+	 * Runs once all threads have finished the iteration, unlike a thread
+	 * state's teardown, which may still run while the trial is torn down.
+	 */
+	@TearDown(Level.Iteration)
+	public void removeCreated() {
+		List<String> ids = new ArrayList<String>(_created);
+		_created.clear();
+		for (int from = 0; from < ids.size(); from += 1000) {
+			_sessionManager.removeSessions(ids.subList(from, Math.min(from + 1000, ids.size())));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws Exception {
+		_server.stop();
+		_memcached.stop();
+	}
+
+	private HttpSession createSession() {
+		HttpSession session = _sessionManager.newHttpSession(_request);
+		session.setAttribute("value", _value);
+		_sessionManager.complete(session);
+		return session;
+	}
+
+	@Benchmark
+	public HttpSession newHttpSession() {
+		HttpSession session = _sessionManager.newHttpSession(_request);
+		_sessionManager.complete(session);
+		_created.add(session.getId());
+		return session;
+	}
+
+	@Benchmark
+	public void setAttribute(Requests requests) {
+		HttpSession session = _sessionManager.getHttpSession(requests.nextId(this));
+		session.setAttribute("value", _value);
+		_sessionManager.complete(session);
+	}
+
+	@Benchmark
+	public Object getAttribute(Requests requests) {
+		HttpSession session = _sessionManager.getHttpSession(requests.nextId(this));
+		Object value = session.getAttribute("value");
+		_sessionManager.complete(session);
+		return value;
+	}
+
+	@Benchmark
+	public void getAttributeNames(Requests requests, Blackhole blackhole) {
+		HttpSession session = _sessionManager.getHttpSession(requests.nextId(this));
+		for (Enumeration<?> names = session.getAttributeNames(); names.hasMoreElements();) {
+			blackhole.consume(names.nextElement());
+		}
+		_sessionManager.complete(session);
+	}
+
+	@Benchmark
+	public void removeSession(Removal removal) {
+		removal.session.invalidate();
+	}
+
+	/**
+	 * A full scavenge pass over all sessions, none of which has expired.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 20, batchSize = 1)
+	public void scavenge() {
+		_sessionManager.run();
+	}
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions options = new CommandLineOptions(args);
+		if (options.getThreads().hasValue()) {
+			new Runner(options).run();
+			return;
+		}
+
+		for (int threads : THREADS) {
+			OptionsBuilder builder = new OptionsBuilder();
+			builder.parent(options).threads(threads);
+			if (options.getIncludes().isEmpty()) {
+				builder.include(SessionManagerBenchmark.class.getSimpleName());
+			}
+			new Runner(builder.build()).run();
+		}
+	}
+}
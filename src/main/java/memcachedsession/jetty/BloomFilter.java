@@ -0,0 +1,93 @@
+package memcachedsession.jetty;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of strings. Adding and testing are lock free, so ids can be
+ * added by request threads while others test them.
+ */
+public class BloomFilter {
+
+	private final AtomicLongArray _words;
+	private final int _bits;
+	private final int _hashes;
+
+	/**
+	 * Sizes the filter to give the false positive rate once the expected
+	 * number of strings has been added.
+	 */
+	public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+		if (expectedInsertions < 1) {
+			throw new IllegalArgumentException("expectedInsertions must be positive: " + expectedInsertions);
+		}
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1: " + falsePositiveRate);
+		}
+		double ln2 = Math.log(2);
+		long bits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+		_bits = (int) Math.min(Math.max(bits, 64), Integer.MAX_VALUE - 63);
+		_hashes = Math.max(1, (int) Math.round((double) _bits / expectedInsertions * ln2));
+		_words = new AtomicLongArray((_bits + 63) / 64);
+	}
+
+	public int getBits() {
+		return _bits;
+	}
+
+	public int getHashes() {
+		return _hashes;
+	}
+
+	public void add(String value) {
+		long hash1 = hash(value);
+		long hash2 = mix(hash1);
+		for (int i = 0; i < _hashes; i++) {
+			int bit = bit(hash1 + i * hash2);
+			int word = bit >>> 6;
+			long mask = 1L << bit;
+			long current;
+			do {
+				current = _words.get(word);
+			} while ((current & mask) == 0 && !_words.compareAndSet(word, current, current | mask));
+		}
+	}
+
+	/**
+	 * @return false if the value has certainly not been added
+	 */
+	public boolean mightContain(String value) {
+		long hash1 = hash(value);
+		long hash2 = mix(hash1);
+		for (int i = 0; i < _hashes; i++) {
+			int bit = bit(hash1 + i * hash2);
+			if ((_words.get(bit >>> 6) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int bit(long hash) {
+		return (int) ((hash & Long.MAX_VALUE) % _bits);
+	}
+
+	// 64 bit FNV-1a
+	private static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	// murmur3 finalizer, giving a second hash independent enough for double hashing
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash | 1;
+	}
+}
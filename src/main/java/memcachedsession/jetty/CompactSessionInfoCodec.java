@@ -0,0 +1,181 @@
+package memcachedsession.jetty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact versioned encoding of {@link MemcachedSessionInfo}:
+ * 
+ * <pre>
+ * version      byte (1 or 2)
+ * flags        byte (bit 0: idChanged)
+ * created      varint
+ * accessed     zigzag varint, relative to created
+ * maxIdleMs    zigzag varint
+ * key count    varint
+ * keys         varint length + UTF-8 bytes, each
+ * </pre>
+ * 
+ * Version 2 is followed by the inline attributes:
+ * 
+ * <pre>
+ * count        varint
+ * attributes   varint length + UTF-8 name, varint length + value bytes, each
+ * </pre>
+ * 
+ * Version 1 is still written when there are no inline attributes.
+ */
+public class CompactSessionInfoCodec implements SessionInfoCodec {
+
+	public static final byte VERSION = 2;
+
+	private static final int ID_CHANGED = 1;
+
+	public byte[] encode(MemcachedSessionInfo sessionInfo) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(32 + 16 * sessionInfo.getKeys().size());
+
+		Map<String, byte[]> attributes = sessionInfo.getAttributes();
+		out.write(attributes.isEmpty() ? 1 : VERSION);
+		out.write(sessionInfo.isIdChanged() ? ID_CHANGED : 0);
+		writeVarLong(out, sessionInfo.getCreated());
+		writeVarLong(out, zigzag(sessionInfo.getAccessed() - sessionInfo.getCreated()));
+		writeVarLong(out, zigzag(sessionInfo.getMaxIdleMs()));
+
+		Set<String> keys = sessionInfo.getKeys();
+		writeVarLong(out, keys.size());
+		for (String key : keys) {
+			byte[] bytes = utf8(key);
+			writeVarLong(out, bytes.length);
+			out.write(bytes, 0, bytes.length);
+		}
+
+		if (!attributes.isEmpty()) {
+			writeVarLong(out, attributes.size());
+			for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+				byte[] bytes = utf8(attribute.getKey());
+				writeVarLong(out, bytes.length);
+				out.write(bytes, 0, bytes.length);
+				
+				byte[] value = attribute.getValue();
+				writeVarLong(out, value.length);
+				out.write(value, 0, value.length);
+			}
+		}
+
+		return out.toByteArray();
+	}
+
+	public MemcachedSessionInfo decode(byte[] data) {
+		Reader in = new Reader(data);
+
+		byte version = in.readByte();
+		if (version < 1 || version > VERSION) {
+			throw new IllegalArgumentException("Unsupported session info version " + version);
+		}
+
+		MemcachedSessionInfo sessionInfo = new MemcachedSessionInfo();
+		sessionInfo.setIdChanged((in.readByte() & ID_CHANGED) != 0);
+		long created = in.readVarLong();
+		sessionInfo.setCreated(created);
+		sessionInfo.setAccessed(created + unzigzag(in.readVarLong()));
+		sessionInfo.setMaxIdleMs(unzigzag(in.readVarLong()));
+
+		int count = (int) in.readVarLong();
+		Set<String> keys = new HashSet<String>(Math.max(16, count * 2));
+		for (int i = 0; i < count; i++) {
+			keys.add(in.readString((int) in.readVarLong()));
+		}
+		sessionInfo.setKeys(keys);
+
+		if (version >= 2) {
+			int attributeCount = (int) in.readVarLong();
+			Map<String, byte[]> attributes = new HashMap<String, byte[]>(Math.max(16, attributeCount * 2));
+			for (int i = 0; i < attributeCount; i++) {
+				String name = in.readString((int) in.readVarLong());
+				attributes.put(name, in.readBytes((int) in.readVarLong()));
+			}
+			sessionInfo.setAttributes(attributes);
+		}
+
+		return sessionInfo;
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeVarLong(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static byte[] utf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static class Reader {
+		private final byte[] _data;
+		private int _pos;
+
+		Reader(byte[] data) {
+			_data = data;
+		}
+
+		byte readByte() {
+			if (_pos >= _data.length) {
+				throw new IllegalArgumentException("Truncated session info");
+			}
+			return _data[_pos++];
+		}
+
+		long readVarLong() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint in session info");
+		}
+
+		byte[] readBytes(int length) {
+			if (length < 0 || _pos + length > _data.length) {
+				throw new IllegalArgumentException("Truncated session info");
+			}
+			byte[] value = new byte[length];
+			System.arraycopy(_data, _pos, value, 0, length);
+			_pos += length;
+			return value;
+		}
+
+		String readString(int length) {
+			if (length < 0 || _pos + length > _data.length) {
+				throw new IllegalArgumentException("Truncated session info");
+			}
+			try {
+				String value = new String(_data, _pos, length, "UTF-8");
+				_pos += length;
+				return value;
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
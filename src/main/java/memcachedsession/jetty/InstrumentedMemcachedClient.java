@@ -0,0 +1,266 @@
+package memcachedsession.jetty;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import memcachedsession.jetty.MemcachedStats.Operation;
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * The memcached operations used by the session managers, recorded in a
+ * {@link MemcachedStats} on their way to a {@link MemcachedClient}.
+ * Synchronous operations are timed, asynchronous ones counted; payload sizes
+ * are counted as values are encoded and decoded.
+ * <p>
+ * The futures of asynchronous operations must be waited for with
+ * {@link #await(Future)}, as their own get() waits forever for a stuck
+ * server.
+ */
+public class InstrumentedMemcachedClient {
+
+	/**
+	 * Reads values without decoding them, only to see whether they exist.
+	 */
+	private static final Transcoder<Object> EXISTS = new Transcoder<Object>() {
+		// only called by clients that decode on a separate pool
+		public boolean asyncDecode(CachedData d) {
+			return false;
+		}
+
+		public CachedData encode(Object o) {
+			throw new UnsupportedOperationException();
+		}
+
+		public Object decode(CachedData d) {
+			return Boolean.TRUE;
+		}
+
+		public int getMaxSize() {
+			return CachedData.MAX_SIZE;
+		}
+	};
+
+	private final MemcachedClient _client;
+	private final MemcachedStats _stats;
+	private final long _timeoutMs;
+	private final ConcurrentMap<Transcoder<?>, Transcoder<?>> _transcoders = new ConcurrentHashMap<Transcoder<?>, Transcoder<?>>();
+
+	public InstrumentedMemcachedClient(MemcachedClient client, MemcachedStats stats, long timeoutMs) {
+		_client = client;
+		_stats = stats;
+		_timeoutMs = timeoutMs;
+	}
+
+	public MemcachedClient getClient() {
+		return _client;
+	}
+
+	public MemcachedStats getStats() {
+		return _stats;
+	}
+
+	/**
+	 * Returns how long {@link #await(Future)} waits.
+	 */
+	public long getTimeoutMs() {
+		return _timeoutMs;
+	}
+
+	/**
+	 * Waits for an asynchronous operation for at most the timeout.
+	 * 
+	 * @throws RuntimeException if the operation failed or timed out
+	 */
+	public <T> T await(Future<T> future) {
+		try {
+			return future.get(_timeoutMs, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public Object get(String key) {
+		return get(key, _client.getTranscoder());
+	}
+
+	/**
+	 * Returns whether the key exists, without decoding its value.
+	 */
+	public boolean exists(String key) {
+		return get(key, EXISTS) != null;
+	}
+
+	public <T> T get(String key, Transcoder<T> tc) {
+		long start = System.nanoTime();
+		try {
+			T value = _client.get(key, counting(tc));
+			_stats.record(Operation.GET, System.nanoTime() - start);
+			_stats.hits(Operation.GET, value != null ? 1 : 0, value != null ? 0 : 1);
+			return value;
+		} catch (RuntimeException e) {
+			_stats.error(Operation.GET);
+			throw e;
+		}
+	}
+
+	public Map<String, Object> getBulk(Collection<String> keys) {
+		return getBulk(keys, _client.getTranscoder());
+	}
+
+	public <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> tc) {
+		long start = System.nanoTime();
+		try {
+			Map<String, T> values = _client.getBulk(keys, counting(tc));
+			_stats.record(Operation.GET_BULK, System.nanoTime() - start);
+			_stats.hits(Operation.GET_BULK, values.size(), keys.size() - values.size());
+			return values;
+		} catch (RuntimeException e) {
+			_stats.error(Operation.GET_BULK);
+			throw e;
+		}
+	}
+
+	public CASValue<Object> gets(String key) {
+		return gets(key, _client.getTranscoder());
+	}
+
+	public <T> CASValue<T> gets(String key, Transcoder<T> tc) {
+		long start = System.nanoTime();
+		try {
+			CASValue<T> value = _client.gets(key, counting(tc));
+			_stats.record(Operation.GETS, System.nanoTime() - start);
+			_stats.hits(Operation.GETS, value != null ? 1 : 0, value != null ? 0 : 1);
+			return value;
+		} catch (RuntimeException e) {
+			_stats.error(Operation.GETS);
+			throw e;
+		}
+	}
+
+	public Future<CASValue<Object>> asyncGets(String key) {
+		return asyncGets(key, _client.getTranscoder());
+	}
+
+	public <T> Future<CASValue<T>> asyncGets(String key, Transcoder<T> tc) {
+		_stats.count(Operation.GETS);
+		return _client.asyncGets(key, counting(tc));
+	}
+
+	public Future<Boolean> set(String key, int exp, Object o) {
+		return set(key, exp, o, _client.getTranscoder());
+	}
+
+	public <T> Future<Boolean> set(String key, int exp, T o, Transcoder<T> tc) {
+		_stats.count(Operation.SET);
+		return _client.set(key, exp, o, counting(tc));
+	}
+
+	public Future<Boolean> add(String key, int exp, Object o) {
+		_stats.count(Operation.ADD);
+		return _client.add(key, exp, o, counting(_client.getTranscoder()));
+	}
+
+	public CASResponse cas(String key, long casId, Object value) {
+		long start = System.nanoTime();
+		try {
+			CASResponse response = _client.cas(key, casId, value, counting(_client.getTranscoder()));
+			_stats.record(Operation.CAS, System.nanoTime() - start);
+			return response;
+		} catch (RuntimeException e) {
+			_stats.error(Operation.CAS);
+			throw e;
+		}
+	}
+
+	public Future<CASResponse> asyncCAS(String key, long casId, Object value) {
+		return asyncCAS(key, casId, value, _client.getTranscoder());
+	}
+
+	public <T> Future<CASResponse> asyncCAS(String key, long casId, T value, Transcoder<T> tc) {
+		_stats.count(Operation.CAS);
+		return _client.asyncCAS(key, casId, value, counting(tc));
+	}
+
+	public Future<Boolean> delete(String key) {
+		_stats.count(Operation.DELETE);
+		return _client.delete(key);
+	}
+
+	public long incr(String key, int by) {
+		long start = System.nanoTime();
+		try {
+			long value = _client.incr(key, by);
+			_stats.record(Operation.INCR, System.nanoTime() - start);
+			_stats.hits(Operation.INCR, value != -1 ? 1 : 0, value != -1 ? 0 : 1);
+			return value;
+		} catch (RuntimeException e) {
+			_stats.error(Operation.INCR);
+			throw e;
+		}
+	}
+
+	public long decr(String key, int by) {
+		long start = System.nanoTime();
+		try {
+			long value = _client.decr(key, by);
+			_stats.record(Operation.DECR, System.nanoTime() - start);
+			_stats.hits(Operation.DECR, value != -1 ? 1 : 0, value != -1 ? 0 : 1);
+			return value;
+		} catch (RuntimeException e) {
+			_stats.error(Operation.DECR);
+			throw e;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> Transcoder<T> counting(Transcoder<T> tc) {
+		Transcoder<T> counting = (Transcoder<T>) _transcoders.get(tc);
+		if (counting == null) {
+			counting = new CountingTranscoder<T>(tc, _stats);
+			_transcoders.putIfAbsent(tc, counting);
+		}
+		return counting;
+	}
+
+	private static class CountingTranscoder<T> implements Transcoder<T> {
+
+		private final Transcoder<T> _transcoder;
+		private final MemcachedStats _stats;
+
+		CountingTranscoder(Transcoder<T> transcoder, MemcachedStats stats) {
+			_transcoder = transcoder;
+			_stats = stats;
+		}
+
+		// only called by clients that decode on a separate pool
+		public boolean asyncDecode(CachedData d) {
+			return false;
+		}
+
+		public CachedData encode(T o) {
+			CachedData d = _transcoder.encode(o);
+			_stats.bytesWritten(d.getData().length);
+			return d;
+		}
+
+		public T decode(CachedData d) {
+			_stats.bytesRead(d.getData().length);
+			return _transcoder.decode(d);
+		}
+
+		public int getMaxSize() {
+			return _transcoder.getMaxSize();
+		}
+	}
+}
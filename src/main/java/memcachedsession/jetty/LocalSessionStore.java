@@ -0,0 +1,116 @@
+package memcachedsession.jetty;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded LRU store of in-memory session copies, keyed by cluster id. A copy
+ * holds the session info and the attribute values read or written through
+ * this node, so they can be served without going to memcached.
+ */
+public class LocalSessionStore {
+
+	public static class LocalSession {
+
+		private volatile MemcachedSessionInfo _sessionInfo;
+		private final ConcurrentMap<String, Object> _values = new ConcurrentHashMap<String, Object>();
+		private final Set<String> _removed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		LocalSession(MemcachedSessionInfo sessionInfo) {
+			_sessionInfo = new MemcachedSessionInfo(sessionInfo);
+		}
+
+		/**
+		 * @return a copy of the session info
+		 */
+		public MemcachedSessionInfo getSessionInfo() {
+			return new MemcachedSessionInfo(_sessionInfo);
+		}
+
+		public void setSessionInfo(MemcachedSessionInfo sessionInfo) {
+			_sessionInfo = new MemcachedSessionInfo(sessionInfo);
+		}
+
+		public Object getValue(String name) {
+			return _values.get(name);
+		}
+
+		public void setValue(String name, Object value) {
+			_values.put(name, value);
+			_removed.remove(name);
+		}
+
+		public void removeValue(String name) {
+			_values.remove(name);
+			_removed.add(name);
+		}
+
+		public Map<String, Object> getValues() {
+			return _values;
+		}
+
+		/**
+		 * Returns the names of the attributes removed through this copy.
+		 */
+		public Set<String> getRemoved() {
+			return _removed;
+		}
+	}
+
+	private final int _maxSessions;
+	private final Map<String, LocalSession> _sessions;
+
+	@SuppressWarnings("serial")
+	public LocalSessionStore(final int maxSessions) {
+		if (maxSessions < 1) {
+			throw new IllegalArgumentException("maxSessions must be positive: " + maxSessions);
+		}
+		_maxSessions = maxSessions;
+		_sessions = new LinkedHashMap<String, LocalSession>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, LocalSession> eldest) {
+				return size() > maxSessions;
+			}
+		};
+	}
+
+	public int getMaxSessions() {
+		return _maxSessions;
+	}
+
+	public synchronized LocalSession get(String clusterId) {
+		return _sessions.get(clusterId);
+	}
+
+	/**
+	 * Starts keeping a copy of the session, replacing any previous copy.
+	 */
+	public synchronized LocalSession put(String clusterId, MemcachedSessionInfo sessionInfo) {
+		LocalSession local = new LocalSession(sessionInfo);
+		_sessions.put(clusterId, local);
+		return local;
+	}
+
+	/**
+	 * Returns a snapshot of the sessions, least recently used first.
+	 */
+	public synchronized Map<String, LocalSession> getSessions() {
+		return new LinkedHashMap<String, LocalSession>(_sessions);
+	}
+
+	public synchronized LocalSession remove(String clusterId) {
+		return _sessions.remove(clusterId);
+	}
+
+	public synchronized void clear() {
+		_sessions.clear();
+	}
+
+	public synchronized int size() {
+		return _sessions.size();
+	}
+}
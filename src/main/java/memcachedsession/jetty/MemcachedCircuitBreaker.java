@@ -0,0 +1,103 @@
+package memcachedsession.jetty;
+
+/**
+ * Circuit breaker around memcached operations. It opens after a number of
+ * consecutive operations failed or were slower than the slow call
+ * threshold; while it is open, operations are not attempted at all. After
+ * the open time it lets a single probe operation through, and closes again
+ * if that one succeeds. A probe that has not reported back within the open
+ * time, or the slow call threshold if that is longer, is given up and
+ * another one is let through.
+ */
+public class MemcachedCircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int _failureThreshold;
+	private final long _slowCallNanos;
+	private final long _openMs;
+
+	private State _state = State.CLOSED;
+	private int _failures = 0;
+	private long _openedAt = 0;
+	private long _probeStartedAt = 0;
+	private long _trips = 0;
+
+	public MemcachedCircuitBreaker(int failureThreshold, long slowCallMs, long openMs) {
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("failureThreshold must be positive: " + failureThreshold);
+		}
+		_failureThreshold = failureThreshold;
+		_slowCallNanos = slowCallMs * 1000000;
+		_openMs = openMs;
+	}
+
+	public int getFailureThreshold() {
+		return _failureThreshold;
+	}
+
+	public long getSlowCallMs() {
+		return _slowCallNanos / 1000000;
+	}
+
+	public long getOpenMs() {
+		return _openMs;
+	}
+
+	public synchronized State getState() {
+		return _state;
+	}
+
+	/**
+	 * Returns how many times the breaker has opened.
+	 */
+	public synchronized long getTrips() {
+		return _trips;
+	}
+
+	/**
+	 * Returns whether an operation may be attempted. An operation allowed
+	 * through must be followed by a call to {@link #success(long)} or
+	 * {@link #failure()}.
+	 */
+	public synchronized boolean allowRequest() {
+		switch (_state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (System.currentTimeMillis() - _openedAt >= _openMs) {
+				_state = State.HALF_OPEN;
+				_probeStartedAt = System.currentTimeMillis();
+				return true;
+			}
+			return false;
+		default:
+			// the probe is still running, unless it never reported back
+			if (System.currentTimeMillis() - _probeStartedAt >= Math.max(_openMs, getSlowCallMs())) {
+				_probeStartedAt = System.currentTimeMillis();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	public synchronized void success(long elapsedNanos) {
+		if (elapsedNanos > _slowCallNanos) {
+			failure();
+			return;
+		}
+		_failures = 0;
+		_state = State.CLOSED;
+	}
+
+	public synchronized void failure() {
+		_failures++;
+		if (_state == State.HALF_OPEN || (_state == State.CLOSED && _failures >= _failureThreshold)) {
+			_state = State.OPEN;
+			_openedAt = System.currentTimeMillis();
+			_trips++;
+		}
+	}
+}
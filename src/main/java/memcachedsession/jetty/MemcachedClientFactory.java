@@ -0,0 +1,177 @@
+package memcachedsession.jetty;
+
+import java.io.IOException;
+import java.util.List;
+
+import net.spy.memcached.AddrUtil;
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.HashAlgorithm;
+import net.spy.memcached.KetamaNodeLocator;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+
+/**
+ * Creates and shares the memcached clients of the session and id managers.
+ * Every manager retains the factory while it is started and releases it
+ * when it stops; the clients are created for the first manager and shut
+ * down after the last one, so all managers and contexts using the same
+ * factory share the clients and their I/O threads.
+ * <p>
+ * The configuration has to be set before the first client is created.
+ */
+public class MemcachedClientFactory {
+
+	public static final String DEFAULT_SERVERS = "localhost:8888";
+
+	private static MemcachedClientFactory _default;
+
+	private String _servers = DEFAULT_SERVERS;
+	private boolean _ketama = true;
+	private long _operationTimeoutMs = 1000;
+	private int _operationQueueSize = DefaultConnectionFactory.DEFAULT_OP_QUEUE_LEN;
+	private int _readBufferSize = DefaultConnectionFactory.DEFAULT_READ_BUFFER_SIZE;
+	private int _connections = 1;
+
+	private MemcachedClient[] _clients;
+	private int _next = 0;
+	private int _references = 0;
+
+	/**
+	 * Returns the factory used by managers that are not given one, which
+	 * connects to {@link #DEFAULT_SERVERS}.
+	 */
+	public static synchronized MemcachedClientFactory getDefault() {
+		if (_default == null) {
+			_default = new MemcachedClientFactory();
+		}
+		return _default;
+	}
+
+	public String getServers() {
+		return _servers;
+	}
+
+	/**
+	 * Sets the memcached servers as host:port pairs separated by spaces or
+	 * commas.
+	 */
+	public void setServers(String servers) {
+		_servers = servers;
+	}
+
+	public boolean isKetama() {
+		return _ketama;
+	}
+
+	/**
+	 * When enabled (the default), keys are spread over the servers with
+	 * consistent hashing, so adding or removing a server only moves the
+	 * sessions of that server.
+	 */
+	public void setKetama(boolean ketama) {
+		_ketama = ketama;
+	}
+
+	public long getOperationTimeoutMs() {
+		return _operationTimeoutMs;
+	}
+
+	public void setOperationTimeoutMs(long timeoutMs) {
+		_operationTimeoutMs = timeoutMs;
+	}
+
+	public int getOperationQueueSize() {
+		return _operationQueueSize;
+	}
+
+	public void setOperationQueueSize(int queueSize) {
+		_operationQueueSize = queueSize;
+	}
+
+	public int getReadBufferSize() {
+		return _readBufferSize;
+	}
+
+	public void setReadBufferSize(int bufferSize) {
+		_readBufferSize = bufferSize;
+	}
+
+	public int getConnections() {
+		return _connections;
+	}
+
+	/**
+	 * Sets how many clients are created. Each has its own I/O thread and one
+	 * connection per server, and the managers are given them in turn.
+	 */
+	public void setConnections(int connections) {
+		if (connections < 1) {
+			throw new IllegalArgumentException("connections must be positive: " + connections);
+		}
+		_connections = connections;
+	}
+
+	public synchronized void retain() {
+		_references++;
+	}
+
+	/**
+	 * Shuts the clients down once the last manager retaining the factory has
+	 * released it.
+	 */
+	public synchronized void release() {
+		if (_references > 0 && --_references == 0 && _clients != null) {
+			for (MemcachedClient client : _clients) {
+				client.shutdown();
+			}
+			_clients = null;
+		}
+	}
+
+	/**
+	 * Returns one of the clients, creating them if needed.
+	 */
+	public synchronized MemcachedClient getClient() {
+		if (_clients == null) {
+			MemcachedClient[] clients = new MemcachedClient[_connections];
+			try {
+				for (int i = 0; i < clients.length; i++) {
+					clients[i] = new MemcachedClient(createConnectionFactory(), AddrUtil.getAddresses(_servers));
+				}
+			} catch (IOException e) {
+				for (MemcachedClient client : clients) {
+					if (client != null) {
+						client.shutdown();
+					}
+				}
+				throw new RuntimeException(e);
+			}
+			_clients = clients;
+			_next = 0;
+		}
+		MemcachedClient client = _clients[_next];
+		_next = (_next + 1) % _clients.length;
+		return client;
+	}
+
+	protected ConnectionFactory createConnectionFactory() {
+		final boolean ketama = _ketama;
+		final long operationTimeoutMs = _operationTimeoutMs;
+		return new DefaultConnectionFactory(_operationQueueSize, _readBufferSize, ketama ? HashAlgorithm.KETAMA_HASH : HashAlgorithm.NATIVE_HASH) {
+			@Override
+			public NodeLocator createLocator(List<MemcachedNode> nodes) {
+				if (ketama) {
+					return new KetamaNodeLocator(nodes, getHashAlg());
+				}
+				return super.createLocator(nodes);
+			}
+
+			@Override
+			public long getOperationTimeout() {
+				return operationTimeoutMs;
+			}
+		};
+	}
+}
@@ -0,0 +1,130 @@
+package memcachedsession.jetty;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Buckets of session ids keyed by the coarse time slot in which the sessions
+ * are due to expire. The scavenger only has to look at the buckets of slots
+ * that have passed, instead of at every session in the index.
+ * <p>
+ * Like the session index, each bucket is split over a fixed number of shard
+ * keys, so filing a session only rewrites one small value and concurrent
+ * filings into the same slot are spread over several keys. All nodes of a
+ * cluster must use the same number of shards.
+ * <p>
+ * A session may be filed in several buckets as its expiry time moves, so the
+ * ids of a bucket are only candidates that have to be checked against their
+ * session info.
+ */
+public class MemcachedExpiryWheel {
+
+	public static final long DEFAULT_SLOT_MS = 60000;
+	public static final int DEFAULT_SHARDS = 16;
+
+	private final InstrumentedMemcachedClient _memcached;
+	private final MemcachedIdSets _sets;
+	private final long _slotMs;
+	private final int _shards;
+
+	public MemcachedExpiryWheel(InstrumentedMemcachedClient memcached, long slotMs, int shards) {
+		if (slotMs < 1) {
+			throw new IllegalArgumentException("slotMs must be positive: " + slotMs);
+		}
+		if (shards < 1) {
+			throw new IllegalArgumentException("shards must be positive: " + shards);
+		}
+		_memcached = memcached;
+		_sets = new MemcachedIdSets(memcached);
+		_slotMs = slotMs;
+		_shards = shards;
+	}
+
+	public long getSlotMs() {
+		return _slotMs;
+	}
+
+	public int getShards() {
+		return _shards;
+	}
+
+	public long getSlot(long timeMs) {
+		return timeMs / _slotMs;
+	}
+
+	public int getShard(String clusterId) {
+		return (clusterId.hashCode() & Integer.MAX_VALUE) % _shards;
+	}
+
+	public String getBucketKey(long slot, int shard) {
+		return MemcachedSessionManager._JEXPIRY + "/" + slot + "/" + shard;
+	}
+
+	/**
+	 * Files sessions under their expiry times, with one update per bucket
+	 * shard involved, all of them pipelined.
+	 * 
+	 * @param expiries the expiry time of each session by cluster id
+	 * @return the cluster ids of the sessions that could not be filed
+	 */
+	public Set<String> schedule(Map<String, Long> expiries) {
+		Map<String, Collection<String>> byKey = new HashMap<String, Collection<String>>();
+		for (Map.Entry<String, Long> entry : expiries.entrySet()) {
+			String key = getBucketKey(getSlot(entry.getValue()), getShard(entry.getKey()));
+			Collection<String> ids = byKey.get(key);
+			if (ids == null) {
+				ids = new ArrayList<String>();
+				byKey.put(key, ids);
+			}
+			ids.add(entry.getKey());
+		}
+
+		Set<String> failed = new HashSet<String>();
+		for (String key : _sets.addAll(byKey)) {
+			failed.addAll(byKey.get(key));
+		}
+		return failed;
+	}
+
+	/**
+	 * Returns the ids filed in all shards of a slot, read with one getBulk.
+	 */
+	@SuppressWarnings("unchecked")
+	public Set<String> getBucket(long slot) {
+		List<String> keys = new ArrayList<String>(_shards);
+		for (int shard = 0; shard < _shards; shard++) {
+			keys.add(getBucketKey(slot, shard));
+		}
+
+		Set<String> clusterIds = new HashSet<String>();
+		for (Object ids : _memcached.getBulk(keys).values()) {
+			clusterIds.addAll((Set<String>) ids);
+		}
+		return clusterIds;
+	}
+
+	public void removeBucket(long slot) {
+		for (int shard = 0; shard < _shards; shard++) {
+			_memcached.delete(getBucketKey(slot, shard));
+		}
+	}
+
+	/**
+	 * @return the last slot whose bucket has been processed, or null if the
+	 *         wheel has never been processed on this memcached cluster
+	 */
+	public Long getCursor() {
+		return (Long) _memcached.get(MemcachedSessionManager._JEXPIRY);
+	}
+
+	public void setCursor(long slot) {
+		Future<Boolean> ok = _memcached.set(MemcachedSessionManager._JEXPIRY, MemcachedSessionManager.DISTANT_FUTURE, slot);
+		_memcached.await(ok);
+	}
+}
@@ -0,0 +1,156 @@
+package memcachedsession.jetty;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+
+/**
+ * Sets of session ids stored as single memcached values and updated with
+ * optimistic gets/cas cycles, so concurrent updates from several threads or
+ * nodes are never lost.
+ */
+public class MemcachedIdSets {
+
+	private static final int MAX_ATTEMPTS = 16;
+	private static final long MAX_BACKOFF_MS = 50;
+
+	private final InstrumentedMemcachedClient _memcached;
+	private final Random _random = new Random();
+
+	public MemcachedIdSets(InstrumentedMemcachedClient memcached) {
+		_memcached = memcached;
+	}
+
+	/**
+	 * @return the number of ids that were not yet in the set
+	 */
+	public int add(String key, Collection<String> ids) {
+		return update(key, ids, true);
+	}
+
+	/**
+	 * Adds ids to several sets at once. Each round reads all the sets still
+	 * to be updated with pipelined gets and writes them with pipelined cas
+	 * or add; the sets changed by others in between are retried in the next
+	 * round.
+	 * 
+	 * @param idsByKey the ids to add to each set, by key
+	 * @return the keys of the sets that could not be updated
+	 */
+	@SuppressWarnings("unchecked")
+	public Set<String> addAll(Map<String, ? extends Collection<String>> idsByKey) {
+		Map<String, Collection<String>> remaining = new HashMap<String, Collection<String>>(idsByKey);
+		for (int attempt = 0; attempt < MAX_ATTEMPTS && !remaining.isEmpty(); attempt++) {
+			if (attempt > 0) {
+				backoff(attempt - 1);
+			}
+
+			Map<String, Future<CASValue<Object>>> reads = new HashMap<String, Future<CASValue<Object>>>();
+			for (String key : remaining.keySet()) {
+				reads.put(key, _memcached.asyncGets(key));
+			}
+
+			Map<String, Future<?>> writes = new HashMap<String, Future<?>>();
+			for (Map.Entry<String, Future<CASValue<Object>>> read : reads.entrySet()) {
+				String key = read.getKey();
+				CASValue<Object> current = _memcached.await(read.getValue());
+				if (current == null) {
+					writes.put(key, _memcached.add(key, MemcachedSessionManager.DISTANT_FUTURE, new HashSet<String>(remaining.get(key))));
+					continue;
+				}
+
+				Set<String> values = (Set<String>) current.getValue();
+				if (values.addAll(remaining.get(key))) {
+					writes.put(key, _memcached.asyncCAS(key, current.getCas(), values));
+				} else {
+					remaining.remove(key);
+				}
+			}
+
+			for (Map.Entry<String, Future<?>> write : writes.entrySet()) {
+				Object written = _memcached.await(write.getValue());
+				if (Boolean.TRUE.equals(written) || written == CASResponse.OK) {
+					remaining.remove(write.getKey());
+				}
+			}
+		}
+		return remaining.keySet();
+	}
+
+	/**
+	 * @return the number of ids that were actually removed from the set
+	 */
+	public int remove(String key, Collection<String> ids) {
+		return update(key, ids, false);
+	}
+
+	@SuppressWarnings("unchecked")
+	public Set<String> get(String key) {
+		Set<String> ids = (Set<String>) _memcached.get(key);
+		if (ids == null) {
+			return new HashSet<String>();
+		}
+		return ids;
+	}
+
+	/**
+	 * Retries with a randomized exponential backoff when another thread or
+	 * node changed the set in between.
+	 */
+	@SuppressWarnings("unchecked")
+	private int update(String key, Collection<String> ids, boolean add) {
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			CASValue<Object> current = _memcached.gets(key);
+
+			if (current == null) {
+				if (!add) {
+					return 0;
+				}
+
+				Set<String> values = new HashSet<String>(ids);
+
+				Future<Boolean> ok = _memcached.add(key, MemcachedSessionManager.DISTANT_FUTURE, values);
+				if (_memcached.await(ok)) {
+					return values.size();
+				}
+			} else {
+				Set<String> values = (Set<String>) current.getValue();
+				int before = values.size();
+				if (add) {
+					values.addAll(ids);
+				} else {
+					values.removeAll(ids);
+				}
+				int changed = Math.abs(values.size() - before);
+				if (changed == 0) {
+					return 0;
+				}
+
+				if (_memcached.cas(key, current.getCas(), values) == CASResponse.OK) {
+					return changed;
+				}
+			}
+
+			backoff(attempt);
+		}
+
+		throw new IllegalStateException("Could not update " + key + " after " + MAX_ATTEMPTS + " attempts");
+	}
+
+	private void backoff(int attempt) {
+		long maxMs = Math.min(1L << attempt, MAX_BACKOFF_MS);
+		try {
+			Thread.sleep((long) (_random.nextDouble() * maxMs));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package memcachedsession.jetty;
+
+import java.util.concurrent.Future;
+
+/**
+ * Lease on a memcached key, used to let only one node of a cluster perform
+ * some periodic work. The lease is taken with add, so only one owner can
+ * create the key, and it expires on its own when the owner stops renewing
+ * it.
+ */
+public class MemcachedLease {
+
+	private final InstrumentedMemcachedClient _memcached;
+	private final String _key;
+	private final String _owner;
+
+	public MemcachedLease(InstrumentedMemcachedClient memcached, String key, String owner) {
+		_memcached = memcached;
+		_key = key;
+		_owner = owner;
+	}
+
+	public String getKey() {
+		return _key;
+	}
+
+	public String getOwner() {
+		return _owner;
+	}
+
+	/**
+	 * Takes the lease if it is free, or renews it if it is already held by
+	 * this owner. Renewal is not atomic with the ownership check, so a holder
+	 * that stalls past the expiration may briefly share the lease with its
+	 * successor.
+	 *
+	 * @return whether this owner holds the lease for the next ttlSecs
+	 */
+	public boolean acquire(int ttlSecs) {
+		Object current = _memcached.get(_key);
+
+		Future<Boolean> ok;
+		if (current == null) {
+			ok = _memcached.add(_key, ttlSecs, _owner);
+		} else if (_owner.equals(current)) {
+			ok = _memcached.set(_key, ttlSecs, _owner);
+		} else {
+			return false;
+		}
+
+		return _memcached.await(ok);
+	}
+
+	/**
+	 * Gives the lease up if this owner holds it, so another node can take it
+	 * over without waiting for it to expire.
+	 */
+	public void release() {
+		if (_owner.equals(_memcached.get(_key))) {
+			_memcached.await(_memcached.delete(_key));
+		}
+	}
+}
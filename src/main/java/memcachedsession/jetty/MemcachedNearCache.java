@@ -0,0 +1,126 @@
+package memcachedsession.jetty;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Bounded LRU cache of session infos on one node, keyed by cluster id. An
+ * entry is served without a memcached round trip for up to the maximum
+ * staleness after it was read; after that the info is simply read again.
+ * A session info is a small record, so checking a CAS value or a version
+ * key instead would save little over the read itself, and a version key
+ * would cost every writer an extra write.
+ * <p>
+ * Callers get copies of the cached infos and must invalidate an entry when
+ * they write or delete its session info.
+ */
+public class MemcachedNearCache {
+
+	private static class CachedInfo {
+		final MemcachedSessionInfo sessionInfo;
+		final long loaded;
+
+		CachedInfo(MemcachedSessionInfo sessionInfo, long loaded) {
+			this.sessionInfo = sessionInfo;
+			this.loaded = loaded;
+		}
+	}
+
+	private final InstrumentedMemcachedClient _memcached;
+	private final int _maxEntries;
+	private final long _maxStalenessMs;
+	private final Map<String, CachedInfo> _entries;
+	// bumped by every invalidation so that a concurrent load does not put back what was invalidated
+	private long _generation = 0;
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+
+	@SuppressWarnings("serial")
+	public MemcachedNearCache(InstrumentedMemcachedClient memcached, final int maxEntries, long maxStalenessMs) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+		}
+		_memcached = memcached;
+		_maxEntries = maxEntries;
+		_maxStalenessMs = maxStalenessMs;
+		_entries = new LinkedHashMap<String, CachedInfo>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedInfo> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public int getMaxEntries() {
+		return _maxEntries;
+	}
+
+	public long getMaxStalenessMs() {
+		return _maxStalenessMs;
+	}
+
+	/**
+	 * @return a copy of the session info, or null if the session does not
+	 *         exist
+	 */
+	public MemcachedSessionInfo get(String clusterId, Transcoder<Object> transcoder) {
+		long now = System.currentTimeMillis();
+
+		CachedInfo entry;
+		long generation;
+		synchronized (this) {
+			entry = _entries.get(clusterId);
+			generation = _generation;
+		}
+		if (entry != null && now - entry.loaded <= _maxStalenessMs) {
+			_hits.incrementAndGet();
+			return new MemcachedSessionInfo(entry.sessionInfo);
+		}
+
+		_misses.incrementAndGet();
+		MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) _memcached.get(clusterId, transcoder);
+		if (sessionInfo == null) {
+			invalidate(clusterId);
+			return null;
+		}
+
+		entry = new CachedInfo(sessionInfo, now);
+		synchronized (this) {
+			if (generation == _generation) {
+				_entries.put(clusterId, entry);
+			}
+		}
+		return new MemcachedSessionInfo(entry.sessionInfo);
+	}
+
+	public synchronized void invalidate(String clusterId) {
+		_generation++;
+		_entries.remove(clusterId);
+	}
+
+	public synchronized void clear() {
+		_generation++;
+		_entries.clear();
+	}
+
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	/**
+	 * Returns the number of reads served from the cache without a round trip.
+	 */
+	public long getHits() {
+		return _hits.get();
+	}
+
+	/**
+	 * Returns the number of reads that went to memcached.
+	 */
+	public long getMisses() {
+		return _misses.get();
+	}
+}
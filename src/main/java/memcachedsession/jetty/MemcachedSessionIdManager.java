@@ -1,13 +1,20 @@
 package memcachedsession.jetty;
 
-import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpSession;
 
 import net.spy.memcached.MemcachedClient;
@@ -15,18 +22,25 @@ import net.spy.memcached.MemcachedClient;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.SessionIdManager;
 import org.mortbay.jetty.servlet.AbstractSessionIdManager;
+import org.mortbay.log.Log;
 
 public class MemcachedSessionIdManager extends AbstractSessionIdManager implements SessionIdManager {
 	
-	private MemcachedClient _memcached;
+	private static final double ID_FILTER_FALSE_POSITIVE_RATE = 0.01;
+	private static final int ID_FILTER_MIN_CAPACITY = 1024;
 	
-	{
-		try {
-			_memcached = new MemcachedClient(new InetSocketAddress("localhost", 8888));
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-	}
+	private MemcachedClientFactory _clientFactory = MemcachedClientFactory.getDefault();
+	private final MemcachedStats _stats = new MemcachedStats();
+	private ObjectName _statsName;
+	private InstrumentedMemcachedClient _memcached;
+	private final MemcachedSessionTranscoder _transcoder = new MemcachedSessionTranscoder();
+	// no client until the manager is started, which rebinds it to its client
+	private MemcachedSessionIndex _index = new MemcachedSessionIndex(null, MemcachedSessionIndex.DEFAULT_SHARDS);
+	private long _idFilterRebuildMs = 60000;
+	private volatile BloomFilter _idFilter;
+	private volatile BloomFilter _rebuildingIdFilter;
+	private ScheduledExecutorService _scheduler;
+	private final List<MemcachedSessionManager> _managers = new CopyOnWriteArrayList<MemcachedSessionManager>();
 	
 	public MemcachedSessionIdManager() {
 		super(null);
@@ -41,22 +55,132 @@ public class MemcachedSessionIdManager extends AbstractSessionIdManager implemen
 	}
 
 	@Override
-	@SuppressWarnings("unchecked")
-	public void addSession(HttpSession session) {
-		synchronized (MemcachedSessionManager.JSESSION_MONITOR) {
-			List<String> jsessions = (List<String>) _memcached.get(MemcachedSessionManager._JSESSIONS);
-			if (jsessions == null) {
-				jsessions = new LinkedList<String>();
-			}
+	public void doStart() {
+		super.doStart();
+		
+		_clientFactory.retain();
+		setClient(_clientFactory.getClient());
+		_transcoder.setStats(_stats);
+		_statsName = _stats.register("name", "sessionIdManager");
+		
+		if (_idFilterRebuildMs > 0) {
+			_scheduler = Executors.newSingleThreadScheduledExecutor();
+			_scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						rebuildIdFilter();
+					} catch (RuntimeException e) {
+						// keep using the previous filter
+						Log.warn(e);
+					}
+				}
+			}, 0, _idFilterRebuildMs, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	@Override
+	protected void doStop() throws Exception {
+		if (_scheduler != null) {
+			_scheduler.shutdownNow();
+			_scheduler = null;
+		}
+		_idFilter = null;
+		super.doStop();
+		MemcachedStats.unregister(_statsName);
+		_statsName = null;
+		_clientFactory.release();
+	}
+
+	public MemcachedClientFactory getClientFactory() {
+		return _clientFactory;
+	}
+
+	/**
+	 * Sets the factory of the memcached client, which should be the one
+	 * given to the {@link MemcachedSessionManager}s. Must be set before the
+	 * manager is started.
+	 */
+	public void setClientFactory(MemcachedClientFactory clientFactory) {
+		_clientFactory = clientFactory;
+	}
+	
+	private void setClient(MemcachedClient client) {
+		_memcached = new InstrumentedMemcachedClient(client, _stats, _clientFactory.getOperationTimeoutMs());
+		_index = new MemcachedSessionIndex(_memcached, _index.getShards());
+	}
 
-			jsessions.add(((MemcachedSessionManager.Session) session).getClusterId());
+	public MemcachedStats getStats() {
+		return _stats;
+	}
 
-			Future<Boolean> ok = _memcached.set(MemcachedSessionManager._JSESSIONS, MemcachedSessionManager.DISTANT_FUTURE, jsessions);
-			try {
-				ok.get();
-			} catch (Exception e) {
-				throw new RuntimeException(e);
+	public long getIdFilterRebuildMs() {
+		return _idFilterRebuildMs;
+	}
+
+	/**
+	 * Sets how often the filter of the ids in use is rebuilt from the
+	 * session index, 0 to check every id against memcached. Must be set
+	 * before the manager is started.
+	 */
+	public void setIdFilterRebuildMs(long rebuildMs) {
+		_idFilterRebuildMs = rebuildMs;
+	}
+
+	/**
+	 * Rebuilds the filter of the ids in use from the session index, dropping
+	 * the ids of sessions that have been removed since. Ids added while the
+	 * index is read go into both the current and the new filter.
+	 */
+	public void rebuildIdFilter() {
+		int expected = Math.max(ID_FILTER_MIN_CAPACITY, 2 * _index.size());
+		BloomFilter filter = new BloomFilter(expected, ID_FILTER_FALSE_POSITIVE_RATE);
+		_rebuildingIdFilter = filter;
+		try {
+			for (String clusterId : _index.getClusterIds()) {
+				filter.add(clusterId);
 			}
+			_idFilter = filter;
+		} finally {
+			_rebuildingIdFilter = null;
+		}
+	}
+
+	public int getIndexShards() {
+		return _index.getShards();
+	}
+
+	/**
+	 * Sets the number of keys the session index is spread over. Must be the
+	 * same on every node and on every {@link MemcachedSessionManager}.
+	 */
+	public void setIndexShards(int shards) {
+		_index = new MemcachedSessionIndex(_memcached, shards);
+	}
+
+	/**
+	 * Only records the id in the id filter. The session is added to the
+	 * index by its {@link MemcachedSessionManager} once it has been written,
+	 * so creating a session needs no index update while memcached is
+	 * unavailable.
+	 */
+	@Override
+	public void addSession(HttpSession session) {
+		addToIdFilter(((MemcachedSessionManager.Session) session).getClusterId());
+	}
+
+	/**
+	 * Records an id in the id filter. Called again once the id has been
+	 * indexed, as a rebuild that read the index before may have dropped it.
+	 */
+	void addToIdFilter(String clusterId) {
+		// read the filter being rebuilt first: once it is gone, it has replaced the current one
+		BloomFilter rebuilding = _rebuildingIdFilter;
+		BloomFilter filter = _idFilter;
+		if (rebuilding != null) {
+			rebuilding.add(clusterId);
+		}
+		if (filter != null) {
+			filter.add(clusterId);
 		}
 	}
 
@@ -73,21 +197,157 @@ public class MemcachedSessionIdManager extends AbstractSessionIdManager implemen
 		return clusterId;
 	}
 
+	/**
+	 * A requested id is reused for a new session if a session of another
+	 * context has it. That session may have been created on another node
+	 * since the id filter was rebuilt, so the check always goes to memcached,
+	 * once: Jetty only generates the id otherwise, without checking the
+	 * requested id again.
+	 */
+	@Override
+	public String newSessionId(HttpServletRequest request, long created) {
+		String requestedId = request == null ? null : request.getRequestedSessionId();
+		if (requestedId == null) {
+			return super.newSessionId(request, created);
+		}
+		
+		String clusterId = getClusterId(requestedId);
+		if (exists(clusterId)) {
+			return clusterId;
+		}
+		return super.newSessionId(new HttpServletRequestWrapper(request) {
+			@Override
+			public String getRequestedSessionId() {
+				return null;
+			}
+		}, created);
+	}
+
+	/**
+	 * Checks the id against the filter of the ids in use first, so that the
+	 * common answer, a new id not in use, needs no round trip. Ids created on
+	 * other nodes since the filter was last rebuilt are missed by it, which
+	 * the random ids make harmless; ids it may contain are looked up in
+	 * memcached.
+	 */
 	@Override
 	public boolean idInUse(String id) {
-		// TODO Auto-generated method stub
-		return false;
+		BloomFilter filter = _idFilter;
+		if (filter != null && !filter.mightContain(id)) {
+			return false;
+		}
+		return exists(id);
 	}
 
+	/**
+	 * @return false also if memcached could not be read, so that new ids can
+	 *         be handed out while it is unavailable
+	 */
+	private boolean exists(String clusterId) {
+		try {
+			return _memcached.exists(clusterId);
+		} catch (RuntimeException e) {
+			Log.ignore(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Registers a started manager, so sessions it invalidates are removed
+	 * from the other contexts too.
+	 */
+	void addManager(MemcachedSessionManager manager) {
+		_managers.add(manager);
+	}
+
+	void removeManager(MemcachedSessionManager manager) {
+		_managers.remove(manager);
+	}
+
+	/**
+	 * Invalidates the session id in every registered context. The contexts
+	 * share the keys of a session, so its info and the attribute values
+	 * stored under keys of their own are read once, with one get and one
+	 * getBulk, and one context removes them with one pipelined batch of
+	 * deletes and one index update; the others only drop what they keep
+	 * locally. Every context then notifies its listeners and unbinds the
+	 * attribute values read before.
+	 * 
+	 * @throws IllegalStateException if the session could not be removed in
+	 *         time; it stays in the index, so the scavenger will retry it
+	 */
 	@Override
 	public void invalidateAll(String id) {
-		// TODO Auto-generated method stub
+		invalidateAll(getClusterId(id), null);
+	}
+
+	/**
+	 * @param invalidated the session whose invalidation this is, which is
+	 *        the one its own context notifies its listeners of, or null
+	 */
+	void invalidateAll(String clusterId, MemcachedSessionManager.Session invalidated) {
+		List<MemcachedSessionManager> managers = new ArrayList<MemcachedSessionManager>(_managers);
+		if (managers.isEmpty()) {
+			// no context to notify, so only the keys and the index entry are removed
+			removeSession(clusterId);
+			return;
+		}
+		
+		MemcachedSessionManager reader = managers.get(0);
+		MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) reader.get(clusterId);
+		Map<String, Object> stored = reader.loadStoredAttributes(clusterId, sessionInfo);
+		List<MemcachedSessionManager.Session> sessions = new ArrayList<MemcachedSessionManager.Session>();
+		for (MemcachedSessionManager manager : managers) {
+			MemcachedSessionManager.Session session = manager.prepareInvalidation(clusterId, sessionInfo, stored, invalidated);
+			if (session != null) {
+				sessions.add(session);
+			}
+		}
 		
+		Set<String> failed = reader.removeSessions(Collections.singletonMap(clusterId, sessionInfo));
+		for (MemcachedSessionManager manager : managers) {
+			manager.forgetSession(clusterId);
+		}
+		if (!failed.isEmpty()) {
+			throw new IllegalStateException("Could not invalidate session " + clusterId);
+		}
+		
+		for (MemcachedSessionManager.Session session : sessions) {
+			session.invalidated();
+		}
 	}
 
+	/**
+	 * Removes the keys of a session and its index entry without a manager,
+	 * reading the session info with a {@link MemcachedSessionTranscoder},
+	 * which decodes every format a manager may have written it in.
+	 */
+	private void removeSession(String clusterId) {
+		MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) _memcached.get(clusterId, _transcoder);
+		List<Future<Boolean>> oks = new ArrayList<Future<Boolean>>();
+		if (sessionInfo != null) {
+			for (String name : sessionInfo.getKeys()) {
+				oks.add(_memcached.delete(clusterId + "/" + name));
+			}
+			oks.add(_memcached.delete(clusterId));
+		}
+		for (Future<Boolean> ok : oks) {
+			// false only means the key was gone already
+			_memcached.await(ok);
+		}
+		_index.remove(clusterId);
+	}
+
+	/**
+	 * Called once a manager has removed a session, which removed its keys and
+	 * index entry for every context; the other contexts drop what they keep
+	 * locally.
+	 */
 	@Override
 	public void removeSession(HttpSession session) {
-		// TODO Auto-generated method stub
-		
-	}	
+		String clusterId = ((MemcachedSessionManager.Session) session).getClusterId();
+		for (MemcachedSessionManager manager : _managers) {
+			manager.forgetSession(clusterId);
+		}
+	}
 }
@@ -0,0 +1,146 @@
+package memcachedsession.jetty;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+
+/**
+ * Index of the cluster ids of all sessions, split over a fixed number of
+ * shard keys so that adding or removing an id only rewrites one small value.
+ * All nodes of a cluster must use the same number of shards.
+ */
+public class MemcachedSessionIndex {
+
+	public static final int DEFAULT_SHARDS = 64;
+
+	private final InstrumentedMemcachedClient _memcached;
+	private final MemcachedIdSets _sets;
+	private final int _shards;
+
+	public MemcachedSessionIndex(InstrumentedMemcachedClient memcached, int shards) {
+		if (shards < 1) {
+			throw new IllegalArgumentException("shards must be positive: " + shards);
+		}
+		_memcached = memcached;
+		_sets = new MemcachedIdSets(memcached);
+		_shards = shards;
+	}
+
+	public int getShards() {
+		return _shards;
+	}
+
+	public int getShard(String clusterId) {
+		return (clusterId.hashCode() & Integer.MAX_VALUE) % _shards;
+	}
+
+	public String getShardKey(int shard) {
+		return MemcachedSessionManager._JSESSIONS + "/" + shard;
+	}
+
+	public String getCountKey() {
+		return MemcachedSessionManager._JSESSIONS + "/count";
+	}
+
+	/**
+	 * Adds the id and increments the counter. A counter that has been
+	 * evicted is recreated from the shards rather than restarted at one.
+	 * 
+	 * @return the number of ids counted once the id has been added, or -1
+	 *         if it was in the index already
+	 */
+	public long add(String clusterId) {
+		if (_sets.add(getShardKey(getShard(clusterId)), Collections.singleton(clusterId)) > 0) {
+			long count = _memcached.incr(getCountKey(), 1);
+			return count < 0 ? reconcile() : count;
+		}
+		return -1;
+	}
+
+	public boolean remove(String clusterId) {
+		if (_sets.remove(getShardKey(getShard(clusterId)), Collections.singleton(clusterId)) > 0) {
+			_memcached.decr(getCountKey(), 1);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes several ids with one update per shard involved.
+	 * 
+	 * @return the number of ids that were actually removed
+	 */
+	public int removeAll(Collection<String> clusterIds) {
+		Map<Integer, List<String>> byShard = new HashMap<Integer, List<String>>();
+		for (String clusterId : clusterIds) {
+			Integer shard = getShard(clusterId);
+			List<String> ids = byShard.get(shard);
+			if (ids == null) {
+				ids = new ArrayList<String>();
+				byShard.put(shard, ids);
+			}
+			ids.add(clusterId);
+		}
+
+		int removed = 0;
+		for (Map.Entry<Integer, List<String>> entry : byShard.entrySet()) {
+			removed += _sets.remove(getShardKey(entry.getKey()), entry.getValue());
+		}
+		if (removed > 0) {
+			_memcached.decr(getCountKey(), removed);
+		}
+		return removed;
+	}
+
+	/**
+	 * Returns the number of ids in the index from a counter maintained along
+	 * with the shards, so it does not need to read them. The counter is
+	 * created from the shards if it does not exist.
+	 */
+	public int size() {
+		long count = _memcached.incr(getCountKey(), 0);
+		if (count < 0) {
+			return reconcile();
+		}
+		return (int) count;
+	}
+
+	/**
+	 * Resets the counter to the number of ids actually in the shards, to
+	 * repair drift from lost counter updates or counter eviction. Updates
+	 * made while the shards are read may be missed until the next call.
+	 */
+	public int reconcile() {
+		int count = getClusterIds().size();
+
+		// counters are stored as decimal strings for incr/decr to work on them
+		Future<Boolean> ok = _memcached.set(getCountKey(), MemcachedSessionManager.DISTANT_FUTURE, String.valueOf(count));
+		_memcached.await(ok);
+		return count;
+	}
+
+	public Set<String> getClusterIds(int shard) {
+		return _sets.get(getShardKey(shard));
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<String> getClusterIds() {
+		Collection<String> keys = new ArrayList<String>(_shards);
+		for (int shard = 0; shard < _shards; shard++) {
+			keys.add(getShardKey(shard));
+		}
+
+		List<String> clusterIds = new ArrayList<String>();
+		Map<String, Object> shards = _memcached.getBulk(keys);
+		for (Object ids : shards.values()) {
+			clusterIds.addAll((Set<String>) ids);
+		}
+		return clusterIds;
+	}
+}
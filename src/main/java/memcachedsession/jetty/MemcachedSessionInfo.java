@@ -1,7 +1,9 @@
 package memcachedsession.jetty;
 
 import java.io.Serializable;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 
@@ -16,6 +18,23 @@ public class MemcachedSessionInfo implements Serializable {
 	private long accessed;
 	
 	private Set<String> keys = new HashSet<String>();
+	private Map<String, byte[]> attributes = new HashMap<String, byte[]>();
+	
+	public MemcachedSessionInfo() {
+	}
+	
+	/**
+	 * Copies the given info. Inline attribute values are shared, as they are
+	 * replaced rather than changed in place.
+	 */
+	public MemcachedSessionInfo(MemcachedSessionInfo other) {
+		created = other.created;
+		idChanged = other.idChanged;
+		maxIdleMs = other.maxIdleMs;
+		accessed = other.accessed;
+		keys = new HashSet<String>(other.getKeys());
+		attributes = new HashMap<String, byte[]>(other.getAttributes());
+	}
 	
 	public long getCreated() {
 		return created;
@@ -57,4 +76,21 @@ public class MemcachedSessionInfo implements Serializable {
 	public void setKeys(Set<String> keys) {
 		this.keys = keys;
 	}
+
+	/**
+	 * Serialized values of the attributes stored inline with the session
+	 * info, as opposed to the attributes named in {@link #getKeys()} which
+	 * are stored under keys of their own.
+	 */
+	public Map<String, byte[]> getAttributes() {
+		if (attributes == null) {
+			// written before inline attributes existed
+			attributes = new HashMap<String, byte[]>();
+		}
+		return attributes;
+	}
+
+	public void setAttributes(Map<String, byte[]> attributes) {
+		this.attributes = attributes;
+	}
 }
\ No newline at end of file
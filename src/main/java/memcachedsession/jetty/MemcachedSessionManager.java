@@ -1,67 +1,173 @@
 package memcachedsession.jetty;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionBindingEvent;
 import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
 
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.BaseSerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
 
 import org.mortbay.jetty.SessionManager;
 import org.mortbay.jetty.servlet.AbstractSessionManager;
+import org.mortbay.log.Log;
+import org.mortbay.util.LazyList;
 
 public class MemcachedSessionManager extends AbstractSessionManager implements SessionManager, Runnable {
 	
+	/**
+	 * How attribute values are laid out in memcached.
+	 */
+	public enum Storage {
+		/** every attribute under a key of its own, next to the session info */
+		PER_ATTRIBUTE,
+		/** all attributes inline in the session info, read and written as one value */
+		SINGLE_BLOB,
+		/** small attributes inline in the session info, larger ones under keys of their own */
+		HYBRID
+	}
+	
+	public static final int DEFAULT_INLINE_THRESHOLD = 1024;
+	
 	public static final String _JSESSIONS = "_JSESSIONS";
+	public static final String _JSCAVENGER = "_JSCAVENGER";
+	public static final String _JEXPIRY = "_JEXPIRY";
 	
 	public static final int DISTANT_FUTURE = Integer.MAX_VALUE;
-	public static final Object JSESSION_MONITOR = new Object();
 	
-	private MemcachedClient _memcached;
+	private static final Object REMOVED = new Object();
+	
+	private static final int TOUCH_ATTEMPTS = 3;
+	
+	// memcached treats expiration times above 30 days as absolute unix times
+	private static final int MAX_RELATIVE_EXPIRATION = 60 * 60 * 24 * 30;
+	
+	private MemcachedClientFactory _clientFactory = MemcachedClientFactory.getDefault();
+	private final MemcachedStats _stats = new MemcachedStats();
+	private ObjectName _statsName;
+	private InstrumentedMemcachedClient _memcached;
+	private Transcoder<Object> _transcoder = new MemcachedSessionTranscoder();
+	private MemcachedSessionIndex _index;
 	private long _scavengePeriodMs = 30000;
+	private int _scavengePageSize = 500;
+	private long _scavengeBudgetMs = 10000;
+	private int _scavengeShard = 0;
+	private MemcachedLease _scavengerLease;
+	private MemcachedExpiryWheel _expiryWheel;
+	private long _expirySlotMs = MemcachedExpiryWheel.DEFAULT_SLOT_MS;
+	private int _expiryShards = MemcachedExpiryWheel.DEFAULT_SHARDS;
+	private long _indexScanMs = 3600000;
+	private long _indexScanned = System.currentTimeMillis();
+	private long _countReconcileMs = 300000;
+	private long _countReconciled = System.currentTimeMillis();
+	private final AtomicLong _sessionsCreated = new AtomicLong();
+	private final AtomicLong _sessionsDestroyed = new AtomicLong();
+	private boolean _writeBehind = false;
+	private Storage _storage = Storage.PER_ATTRIBUTE;
+	private int _inlineThreshold = DEFAULT_INLINE_THRESHOLD;
+	private boolean _ttlExpiry = false;
+	private MemcachedNearCache _nearCache;
+	private long _nearCacheStalenessMs = 1000;
+	private LocalSessionStore _localSessions;
+	private int _affinityMaxSessions = 10000;
 	private ScheduledExecutorService _scheduler;
 	private ScheduledFuture<?> _scavenger;
+	private double _accessPersistRatio = 0.1;
+	private long _accessFlushPeriodMs = 1000;
+	private long _removeTimeoutMs = 5000;
+	private long _operationTimeoutMs = 1000;
+	private MemcachedCircuitBreaker _breaker;
+	private LocalSessionStore _fallbackSessions;
+	private int _fallbackMaxSessions = 10000;
+	private final ConcurrentMap<String, Long> _pendingAccesses = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentMap<String, Long> _pendingExpiries = new ConcurrentHashMap<String, Long>();
+	private ScheduledFuture<?> _accessFlusher;
+	private volatile int _sessionCount = 0;
 
 	
 	public MemcachedSessionManager() {
-		try {
-			_memcached = new MemcachedClient(new InetSocketAddress("localhost", 8888));
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+		// no client until the manager is started, which rebinds these to its client
+		_index = new MemcachedSessionIndex(null, MemcachedSessionIndex.DEFAULT_SHARDS);
+		_scavengerLease = new MemcachedLease(null, _JSCAVENGER, UUID.randomUUID().toString());
 	}
 	
 	@Override
 	public void doStart() throws Exception {
 		super.doStart();
 		
+		_clientFactory.retain();
+		setClient(_clientFactory.getClient());
+		if (_transcoder instanceof MemcachedSessionTranscoder) {
+			((MemcachedSessionTranscoder) _transcoder).setStats(_stats);
+		}
+		_statsName = _stats.register("context", _context == null ? "" : _context.getContextPath());
+		
 		_scheduler = Executors.newSingleThreadScheduledExecutor();
 		scheduleScavenging();
+		scheduleAccessFlushing();
+		
+		if (_sessionIdManager instanceof MemcachedSessionIdManager) {
+			((MemcachedSessionIdManager) _sessionIdManager).addManager(this);
+		}
 	}
 	
 	 public void doStop() throws Exception {
 		if (_scavenger != null) {
 			_scavenger.cancel(true);
 		}
+		if (_accessFlusher != null) {
+			_accessFlusher.cancel(false);
+		}
+		flushAccesses();
+		flushExpiries();
 		if (_scheduler != null) {
 			_scheduler.shutdownNow();
 		}
+		if (_scavengerLease != null) {
+			_scavengerLease.release();
+		}
+		if (_sessionIdManager instanceof MemcachedSessionIdManager) {
+			((MemcachedSessionIdManager) _sessionIdManager).removeManager(this);
+		}
 		
 		super.doStop();
+		MemcachedStats.unregister(_statsName);
+		_statsName = null;
+		_clientFactory.release();
 	}
 
 	private void scheduleScavenging() {
@@ -75,6 +181,49 @@ public class MemcachedSessionManager extends AbstractSessionManager implements S
 		}
 	}
 
+	private void scheduleAccessFlushing() {
+		if (_accessFlusher != null) {
+			_accessFlusher.cancel(false);
+		}
+		
+		if (_accessFlushPeriodMs > 0 && _scheduler != null) {
+			_accessFlusher = _scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						reconcile();
+						flushAccesses();
+						flushExpiries();
+					} catch (RuntimeException e) {
+						// keep the flusher scheduled, the accesses are retried on the next run
+						Log.warn(e);
+					}
+				}
+			}, _accessFlushPeriodMs, _accessFlushPeriodMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Adds a session as Jetty does, but without holding the id manager's
+	 * and this manager's monitors, which would serialize the memcached
+	 * writes of every session created on the node, and without reading the
+	 * session count twice: the count returned by the index update keeps the
+	 * max sessions statistic.
+	 */
+	@Override
+	protected void addSession(AbstractSessionManager.Session session, boolean created) {
+		_sessionIdManager.addSession(session);
+		addSession(session);
+		
+		if (!created) {
+			((Session) session).didActivate();
+		} else if (_sessionListeners != null) {
+			HttpSessionEvent event = new HttpSessionEvent(session);
+			for (int i = 0; i < LazyList.size(_sessionListeners); i++) {
+				((HttpSessionListener) LazyList.get(_sessionListeners, i)).sessionCreated(event);
+			}
+		}
+	}
+	
 	@Override
 	public void addSession(org.mortbay.jetty.servlet.AbstractSessionManager.Session session) {
 		
@@ -85,19 +234,79 @@ public class MemcachedSessionManager extends AbstractSessionManager implements S
 		MemcachedSessionInfo sessionInfo = new MemcachedSessionInfo();
 		sessionInfo.setCreated(memSession.getCreationTime());
 		sessionInfo.setMaxIdleMs(memSession.getMaxInactiveInterval() * 1000);
+		memSession._unsaved = false;
 		
-		Future<Boolean> ok = _memcached.set(clusterId, DISTANT_FUTURE, sessionInfo);
-		try {
-			ok.get();
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+		// the session is indexed here rather than by the id manager, so that
+		// while memcached is unavailable it is left to reconcile()
+		boolean stored = false;
+		if (_breaker == null || _breaker.allowRequest()) {
+			try {
+				stored = await(Collections.singletonList(storeSessionInfo(clusterId, getExpiration(sessionInfo), sessionInfo)));
+				if (stored) {
+					index(clusterId);
+				}
+			} catch (RuntimeException e) {
+				if (_breaker == null) {
+					throw e;
+				}
+				_breaker.failure();
+				stored = false;
+			}
+		}
+		if (stored) {
+			scheduleExpiry(clusterId, sessionInfo);
+		} else {
+			keepLocally(clusterId, sessionInfo);
+		}
+		memSession._sessionInfo = sessionInfo;
+		if (_localSessions != null && getIdManager().getWorkerName() != null) {
+			// the node creating a session owns it
+			_localSessions.put(clusterId, sessionInfo);
+		}
+		_sessionsCreated.incrementAndGet();
+	}
+	
+	/**
+	 * With affinity, a request that reaches the node named in the session id
+	 * is served from this node's copy of the session, once a cheap check has
+	 * found its key still in memcached, where another node may have
+	 * invalidated it. Any other node drops its copy, as the session will be
+	 * changed elsewhere from now on.
+	 */
+	@Override
+	public HttpSession getHttpSession(String nodeId) {
+		if (_localSessions == null) {
+			return super.getHttpSession(nodeId);
+		}
+		
+		String clusterId = getIdManager().getClusterId(nodeId);
+		String workerName = getIdManager().getWorkerName();
+		if (workerName == null || !nodeId.endsWith("." + workerName)) {
+			_localSessions.remove(clusterId);
+			return super.getHttpSession(nodeId);
+		}
+		
+		if (_localSessions.get(clusterId) != null) {
+			try {
+				if (!exists(clusterId)) {
+					_localSessions.remove(clusterId);
+				}
+			} catch (MemcachedUnavailableException e) {
+				// the copy is all there is until memcached is back
+			}
+		}
+		
+		Session session = (Session) super.getHttpSession(nodeId);
+		if (session != null && session._sessionInfo != null && _localSessions.get(clusterId) == null) {
+			_localSessions.put(clusterId, session._sessionInfo);
 		}
+		return session;
 	}
 	
 	@Override
 	public Session getSession(String idInCluster) {
 		
-		MemcachedSessionInfo sessionInfo =  (MemcachedSessionInfo) _memcached.get(idInCluster);
+		MemcachedSessionInfo sessionInfo = loadSessionInfo(idInCluster);
 		
 		if (sessionInfo != null) {
 			return new Session(sessionInfo, idInCluster);
@@ -105,26 +314,65 @@ public class MemcachedSessionManager extends AbstractSessionManager implements S
 		return null;
 	}
 
+	/**
+	 * Returns a lazy view of all sessions; see {@link MemcachedSessionMap}.
+	 */
 	@Override
 	public Map<String, Session> getSessionMap() {
-		synchronized (JSESSION_MONITOR) {
-			Map<String, Session> sessions = new HashMap<String, Session>();
-
-			for (String clusterId : getClusterIds()) {
-				sessions.put(clusterId, new Session((MemcachedSessionInfo) _memcached
-						.get(clusterId), clusterId));
+		return new MemcachedSessionMap(this, _index, _scavengePageSize);
+	}
+	
+	/**
+	 * Loads the given sessions with one getBulk, leaving out those that no
+	 * longer exist.
+	 */
+	Map<String, Session> loadSessions(List<String> clusterIds) {
+		Map<String, Object> sessionInfos = _memcached.getBulk(clusterIds, _transcoder);
+		
+		Map<String, Session> sessions = new LinkedHashMap<String, Session>();
+		for (String clusterId : clusterIds) {
+			MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) sessionInfos.get(clusterId);
+			if (sessionInfo != null) {
+				sessions.put(clusterId, new Session(sessionInfo, clusterId));
 			}
-
-			return sessions;
 		}
+		return sessions;
 	}
 
+	/**
+	 * Returns the number of sessions in the index. While memcached is
+	 * unavailable, the number last read is returned.
+	 */
 	@Override
 	public int getSessions() {
-		synchronized (JSESSION_MONITOR) {
-			List<String> clusterIds = getClusterIds();
-			return clusterIds.size();
+		if (_breaker == null) {
+			return _index.size();
+		}
+		if (isDegraded()) {
+			return _sessionCount;
+		}
+		long start = System.nanoTime();
+		try {
+			_sessionCount = _index.size();
+			succeeded(start);
+		} catch (RuntimeException e) {
+			_breaker.failure();
 		}
+		return _sessionCount;
+	}
+	
+	/**
+	 * Returns the number of sessions created by this node.
+	 */
+	public long getSessionsCreated() {
+		return _sessionsCreated.get();
+	}
+	
+	/**
+	 * Returns the number of sessions invalidated or scavenged by this node.
+	 */
+	public long getSessionsDestroyed() {
+		return _sessionsDestroyed.get();
 	}
 
 	@Override
@@ -132,36 +380,179 @@ public class MemcachedSessionManager extends AbstractSessionManager implements S
 		// do nothing!
 	}
 
-	@SuppressWarnings("unchecked")
-	private List<String> getClusterIds() {
-		List<String> clusterIds = (List<String>) _memcached.get(_JSESSIONS);
-		if (clusterIds == null) {
-			return Collections.emptyList();
-		}
-		return clusterIds;
-	}
-
 	@Override
 	protected Session newSession(HttpServletRequest request) {
 		return new Session(request);
 	}
 
+	/**
+	 * Invalidates the session through a {@link MemcachedSessionIdManager},
+	 * which removes it for every context at once and notifies the listeners
+	 * of every context, instead of looking it up and removing it here and
+	 * then in each other context.
+	 */
+	@Override
+	public void removeSession(AbstractSessionManager.Session session, boolean invalidate) {
+		if (!invalidate || !(_sessionIdManager instanceof MemcachedSessionIdManager)) {
+			super.removeSession(session, invalidate);
+			return;
+		}
+		
+		Session memSession = (Session) session;
+		((MemcachedSessionIdManager) _sessionIdManager).invalidateAll(memSession.getClusterId(), memSession);
+	}
+	
+	/**
+	 * Reads the values of the attributes of a session stored under keys of
+	 * their own, with one getBulk, for the listeners of every context to be
+	 * notified of once the session has been invalidated.
+	 * 
+	 * @return the values by attribute name
+	 * @throws MemcachedUnavailableException if the breaker is open or the
+	 *         read failed while a breaker is in use
+	 */
+	Map<String, Object> loadStoredAttributes(String clusterId, MemcachedSessionInfo sessionInfo) {
+		if (sessionInfo == null || sessionInfo.getKeys().isEmpty()) {
+			return Collections.emptyMap();
+		}
+		
+		List<String> keys = new ArrayList<String>(sessionInfo.getKeys().size());
+		for (String name : sessionInfo.getKeys()) {
+			keys.add(clusterId + "/" + name);
+		}
+		Map<String, Object> values = getBulk(keys);
+		
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		for (String name : sessionInfo.getKeys()) {
+			Object value = values.get(clusterId + "/" + name);
+			if (value != null) {
+				attributes.put(name, value);
+			}
+		}
+		return attributes;
+	}
+	
+	/**
+	 * Returns this context's session with its attribute values taken from
+	 * the given info and stored values, so that its listeners can be
+	 * notified once it has been invalidated, or null if it does not exist.
+	 * The session being invalidated is used if it is one of this context's.
+	 */
+	Session prepareInvalidation(String clusterId, MemcachedSessionInfo sessionInfo, Map<String, Object> stored, Session invalidated) {
+		Session session;
+		if (invalidated != null && invalidated.getOuterType() == this) {
+			session = invalidated;
+		} else if (sessionInfo != null) {
+			session = new Session(new MemcachedSessionInfo(sessionInfo), clusterId);
+		} else {
+			return null;
+		}
+		session.prepareInvalidation(sessionInfo, stored);
+		return session;
+	}
+	
 	@Override
 	protected void removeSession(String idInCluster) {
-		MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) _memcached.get(idInCluster);
-
-		for (String key : sessionInfo.getKeys()) {
-			_memcached.delete(idInCluster + "/" + key);
+		Set<String> failed = removeSessions(Collections.singleton(idInCluster));
+		if (!failed.isEmpty()) {
+			throw new IllegalStateException("Could not remove session " + idInCluster + " from memcached");
+		}
+	}
+	
+	/**
+	 * Removes several sessions with one getBulk of their infos and one
+	 * pipelined batch of deletes for all their keys, awaited together until
+	 * the remove timeout. Sessions whose keys were all deleted are then
+	 * removed from the index with one update per shard.
+	 * 
+	 * @return the cluster ids of the sessions that could not be removed in
+	 *         time or failed; they stay in the index, so the scavenger will
+	 *         retry them
+	 */
+	public Set<String> removeSessions(Collection<String> clusterIds) {
+		if (clusterIds.isEmpty()) {
+			return Collections.emptySet();
 		}
-
-		_memcached.delete(idInCluster);
 		
-		synchronized (JSESSION_MONITOR) {
-			List<String> clusterIds = getClusterIds();
-			clusterIds.remove(idInCluster);
-
-			_memcached.set(_JSESSIONS, DISTANT_FUTURE, clusterIds);
+		Map<String, Object> sessionInfos = _memcached.getBulk(clusterIds, _transcoder);
+		Map<String, MemcachedSessionInfo> removed = new LinkedHashMap<String, MemcachedSessionInfo>();
+		for (String clusterId : clusterIds) {
+			removed.put(clusterId, (MemcachedSessionInfo) sessionInfos.get(clusterId));
+		}
+		return removeSessions(removed);
+	}
+	
+	/**
+	 * Drops what this node keeps of a session that has been removed: its
+	 * near cache entry, local copies and pending access time.
+	 */
+	void forgetSession(String clusterId) {
+		if (_nearCache != null) {
+			_nearCache.invalidate(clusterId);
+		}
+		if (_localSessions != null) {
+			_localSessions.remove(clusterId);
+		}
+		if (_fallbackSessions != null) {
+			_fallbackSessions.remove(clusterId);
+		}
+		_pendingAccesses.remove(clusterId);
+	}
+	
+	/**
+	 * Removes the given sessions, whose infos have been read already; a null
+	 * info stands for a session of which only the index entry is left.
+	 */
+	Set<String> removeSessions(Map<String, MemcachedSessionInfo> sessionInfos) {
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + _removeTimeoutMs;
+		
+		Map<String, List<Future<Boolean>>> deletes = new LinkedHashMap<String, List<Future<Boolean>>>();
+		for (Map.Entry<String, MemcachedSessionInfo> entry : sessionInfos.entrySet()) {
+			String clusterId = entry.getKey();
+			MemcachedSessionInfo sessionInfo = entry.getValue();
+			
+			List<Future<Boolean>> oks = new ArrayList<Future<Boolean>>();
+			if (sessionInfo != null) {
+				for (String key : sessionInfo.getKeys()) {
+					oks.add(_memcached.delete(clusterId + "/" + key));
+				}
+				oks.add(_memcached.delete(clusterId));
+			}
+			deletes.put(clusterId, oks);
+			forgetSession(clusterId);
+		}
+		
+		Set<String> failed = new HashSet<String>();
+		List<String> deleted = new ArrayList<String>(deletes.size());
+		for (Map.Entry<String, List<Future<Boolean>>> entry : deletes.entrySet()) {
+			try {
+				for (Future<Boolean> ok : entry.getValue()) {
+					// false only means the key was gone already
+					ok.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				}
+				deleted.add(entry.getKey());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (Exception e) {
+				failed.add(entry.getKey());
+			}
+		}
+		
+		if (failed.isEmpty()) {
+			_stats.record(MemcachedStats.Operation.BATCH, System.nanoTime() - start);
+		} else {
+			_stats.error(MemcachedStats.Operation.BATCH);
 		}
+		
+		if (!deleted.isEmpty()) {
+			_sessionsDestroyed.addAndGet(_index.removeAll(deleted));
+		}
+		if (!failed.isEmpty()) {
+			Log.warn("Could not remove " + failed.size() + " of " + deletes.size() + " sessions within " + _removeTimeoutMs + "ms");
+		}
+		return failed;
 	}
 	
 	@Override
@@ -183,23 +574,27 @@ public class MemcachedSessionManager extends AbstractSessionManager implements S
 		
 		try {
 			
-			long now = System.currentTimeMillis();
-			
-			List<String> clusterIds = getClusterIds();
-			for (Iterator<String> iter = clusterIds.iterator(); iter.hasNext();) {
-				String clusterId = iter.next();
-				
-				MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) _memcached.get(clusterId);
-				long idleTime = sessionInfo.getMaxIdleMs();
-				long accessed = sessionInfo.getAccessed();
-				
-				if (idleTime > 0 && accessed + idleTime < now) {
-					
-					removeSession(clusterId);
+			// only the node holding the lease scavenges, the lease outlives a few periods so it survives a slow pass
+			if (_scavengerLease != null) {
+				int ttlSecs = (int) Math.max(1, (3 * _scavengePeriodMs + 999) / 1000);
+				if (!_scavengerLease.acquire(ttlSecs)) {
+					return;
 				}
 			}
 			
+			long now = System.currentTimeMillis();
+			long deadline = _scavengeBudgetMs > 0 ? now + _scavengeBudgetMs : Long.MAX_VALUE;
+			
+			if (_expiryWheel == null) {
+				scavengeIndex(now, deadline, false);
+			} else {
+				scavengeWheel(now, deadline);
+			}
 			
+			if (_countReconcileMs > 0 && now - _countReconciled > _countReconcileMs) {
+				_index.reconcile();
+				_countReconciled = now;
+			}
 			
 		} finally {
 			thread.setContextClassLoader(oldLoader);
@@ -207,175 +602,1594 @@ public class MemcachedSessionManager extends AbstractSessionManager implements S
 
 	}
 	
-	public long getScavengePeriodMs() {
-		return _scavengePeriodMs;
-	}
-
-	public void setScavengePeriodMs(long periodMs) {
-		_scavengePeriodMs = periodMs;
-		scheduleScavenging();
+	/**
+	 * Checks every session in the index, resuming where the previous pass
+	 * ran out of time. If reschedule is set, the sessions that are still
+	 * alive are filed in the expiry wheel.
+	 * 
+	 * @return whether the whole index has been checked
+	 */
+	private boolean scavengeIndex(long now, long deadline, boolean reschedule) {
+		int shards = _index.getShards();
+		for (int i = 0; i < shards; i++) {
+			int shard = (_scavengeShard + i) % shards;
+			
+			List<String> clusterIds = new ArrayList<String>(_index.getClusterIds(shard));
+			for (int from = 0; from < clusterIds.size(); from += _scavengePageSize) {
+				List<String> page = clusterIds.subList(from, Math.min(from + _scavengePageSize, clusterIds.size()));
+				scavenge(page, now, reschedule);
+			}
+			
+			if (System.currentTimeMillis() > deadline && i < shards - 1) {
+				_scavengeShard = (shard + 1) % shards;
+				return false;
+			}
+		}
+		_scavengeShard = 0;
+		return true;
 	}
-
-	public class Session extends AbstractSessionManager.Session {
+	
+	/**
+	 * Checks only the sessions filed in the expiry buckets of slots that have
+	 * passed since the previous pass.
+	 */
+	private void scavengeWheel(long now, long deadline) {
+		long currentSlot = _expiryWheel.getSlot(now);
 		
-		/**
-		 * 
-		 */
-		private static final long serialVersionUID = -2428097351341507674L;
-
-		protected Session(HttpServletRequest request) {
-			super(request);
+		Long cursor = _expiryWheel.getCursor();
+		if (cursor == null) {
+			// sessions created before the wheel was in use are only known to the index, file them
+			if (scavengeIndex(now, deadline, true)) {
+				_expiryWheel.setCursor(currentSlot - 1);
+			}
+			return;
 		}
 		
-		protected Session(MemcachedSessionInfo sessionInfo, String clusterId) {
-			super(sessionInfo.getCreated(), clusterId);
-			_idChanged = sessionInfo.isIdChanged();
-		}
-
-		@SuppressWarnings("unchecked")
-		@Override
-		protected Map newAttributeMap() {
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public synchronized void setAttribute(String name, Object value) {
-			if (value == null) {
-				removeAttribute(name);
-				return;
-			}
-			
-			if (value instanceof HttpSessionActivationListener) {
-				((HttpSessionActivationListener) value).sessionWillPassivate(new HttpSessionEvent(this));
-			}
-			MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) _memcached.get(_clusterId);
-			Set<String> keys = sessionInfo.getKeys();
-						
-			Future<Boolean> ok1 = null;
-			
-			if (!keys.contains(name)) {
-				keys.add(name);
-				ok1 = _memcached.set(_clusterId, DISTANT_FUTURE, sessionInfo);
+		for (long slot = cursor + 1; slot < currentSlot; slot++) {
+			List<String> clusterIds = new ArrayList<String>(_expiryWheel.getBucket(slot));
+			for (int from = 0; from < clusterIds.size(); from += _scavengePageSize) {
+				List<String> page = clusterIds.subList(from, Math.min(from + _scavengePageSize, clusterIds.size()));
+				scavenge(page, now, true);
 			}
 			
-			Future<Boolean> ok2 = _memcached.set(_clusterId + "/" + name, DISTANT_FUTURE, value);
+			_expiryWheel.removeBucket(slot);
+			_expiryWheel.setCursor(slot);
 			
-			try {
-				if (ok1 != null) ok1.get();
-				ok2.get();
-			} catch (Exception e) {
-				throw new RuntimeException(e);
+			if (System.currentTimeMillis() > deadline) {
+				return;
 			}
 		}
-
-		@Override
-		public synchronized Object getAttribute(String name) {
-			Object value = _memcached.get(_clusterId + "/" + name);
-			if (value instanceof HttpSessionActivationListener) {
-				((HttpSessionActivationListener) value).sessionDidActivate(new HttpSessionEvent(this));
-			}
-			
-			return value;
+		
+		// sessions whose filing failed are only known to the index, so it is checked now and then
+		if (_indexScanMs > 0 && now - _indexScanned > _indexScanMs && scavengeIndex(now, deadline, true)) {
+			_indexScanned = now;
 		}
-
-		@Override
-		public synchronized Enumeration<String> getAttributeNames() {
-			MemcachedSessionInfo sessionInfo =  (MemcachedSessionInfo) _memcached.get(_clusterId);
+	}
+	
+	/**
+	 * Removes the expired sessions among the given ones. If reschedule is set,
+	 * the sessions that are still alive are filed again in the bucket of
+	 * their current expiry time.
+	 */
+	private void scavenge(List<String> clusterIds, long now, boolean reschedule) {
+		Map<String, Object> sessionInfos = _memcached.getBulk(clusterIds, _transcoder);
+		
+		Map<String, MemcachedSessionInfo> expired = new LinkedHashMap<String, MemcachedSessionInfo>();
+		for (String clusterId : clusterIds) {
+			MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) sessionInfos.get(clusterId);
 			if (sessionInfo == null) {
-				return Collections.enumeration(Collections.<String>emptySet());
-			}
-			return Collections.enumeration(sessionInfo.getKeys());
-			
-		}
-
-		@Override
-		public synchronized void removeAttribute(String name) {
-			MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) _memcached.get(_clusterId);
-			Set<String> keys = sessionInfo.getKeys();
-			
-			Future<Boolean> ok1 = null;;
-			if (keys.contains(name)) {
-				keys.remove(name);
-				
-				ok1 = _memcached.set(_clusterId, DISTANT_FUTURE, sessionInfo);
+				// expired by memcached itself, or removed without updating the index
+				expired.put(clusterId, null);
+				continue;
 			}
 			
-			Future<Boolean> ok2 = _memcached.delete(_clusterId + "/" + name);
+			long idleTime = sessionInfo.getMaxIdleMs();
 			
-			try {
-				if (ok1 != null) ok1.get();
-				ok2.get();
-			} catch (Exception e) {
-				throw new RuntimeException(e);
+			if (idleTime > 0 && getExpiryTime(sessionInfo) < now) {
+				expired.put(clusterId, sessionInfo);
+			} else if (reschedule) {
+				queueExpiry(clusterId, sessionInfo);
 			}
 		}
-
-		@Override
-		protected synchronized void willPassivate() {
-			// all are already passivated
+		
+		if (!expired.isEmpty()) {
+			removeSessions(expired);
 		}
+		if (reschedule) {
+			flushExpiries();
+		}
+	}
+	
+	public MemcachedClientFactory getClientFactory() {
+		return _clientFactory;
+	}
 
-		@Override
-		protected synchronized void didActivate() {
-			// 
+	/**
+	 * Sets the factory of the memcached client, to be shared with the
+	 * {@link MemcachedSessionIdManager} and the managers of other contexts.
+	 * The default factory connects to {@link MemcachedClientFactory#DEFAULT_SERVERS}.
+	 * Must be set before the manager is started.
+	 */
+	public void setClientFactory(MemcachedClientFactory clientFactory) {
+		_clientFactory = clientFactory;
+	}
+
+	private void setClient(MemcachedClient client) {
+		InstrumentedMemcachedClient memcached = new InstrumentedMemcachedClient(client, _stats, _clientFactory.getOperationTimeoutMs());
+		_memcached = memcached;
+		_index = new MemcachedSessionIndex(memcached, _index.getShards());
+		if (_scavengerLease != null) {
+			_scavengerLease = new MemcachedLease(memcached, _JSCAVENGER, _scavengerLease.getOwner());
 		}
-		
-		@Override
-		protected String getClusterId() {
-			return _clusterId;
+		if (_expiryWheel != null) {
+			_expiryWheel = new MemcachedExpiryWheel(memcached, _expirySlotMs, _expiryShards);
 		}
-		
-		@Override
-		public void setIdChanged(final boolean changed) {
-			super.setIdChanged(changed);
+		if (_nearCache != null) {
+			_nearCache = new MemcachedNearCache(memcached, _nearCache.getMaxEntries(), _nearCacheStalenessMs);
+		}
+	}
 
-			MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) _memcached.get(_clusterId);
-			if (sessionInfo != null) {
-				sessionInfo.setIdChanged(changed);
+	public Transcoder<Object> getTranscoder() {
+		return _transcoder;
+	}
 
-				Future<Boolean> ok1 = _memcached.set(_clusterId, DISTANT_FUTURE, sessionInfo);
+	/**
+	 * Sets the transcoder used for session infos and attribute values. The
+	 * default is a {@link MemcachedSessionTranscoder} writing session infos
+	 * with Java serialization; give it a {@link CompactSessionInfoCodec} once
+	 * every node is able to read that format.
+	 */
+	public void setTranscoder(Transcoder<Object> transcoder) {
+		_transcoder = transcoder;
+	}
 
-				try {
-					ok1.get();
-				} catch (Exception e) {
-					throw new RuntimeException(e);
-				}
-			}
+	/**
+	 * Sets the serialized size above which attribute values are gzipped by
+	 * the transcoder, if it is a spymemcached serializing transcoder.
+	 */
+	public void setCompressionThreshold(int threshold) {
+		if (_transcoder instanceof BaseSerializingTranscoder) {
+			((BaseSerializingTranscoder) _transcoder).setCompressionThreshold(threshold);
 		}
-		
-		@Override
-		public boolean isIdChanged() {
-			
-			MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) _memcached.get(_clusterId);
-			if (sessionInfo != null) {
-				_idChanged = sessionInfo.isIdChanged();
-			}
+	}
 
-			return super.isIdChanged();
-		}
-		
-		@Override
-		public void setMaxInactiveInterval(int secs) {
-			super.setMaxInactiveInterval(secs);
+	public int getIndexShards() {
+		return _index.getShards();
+	}
 
-			MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) _memcached.get(_clusterId);
-			if (sessionInfo != null) {
-				sessionInfo.setMaxIdleMs(_maxIdleMs);
+	/**
+	 * Sets the number of keys the session index is spread over. Must be the
+	 * same on every node and on the {@link MemcachedSessionIdManager}.
+	 */
+	public void setIndexShards(int shards) {
+		_index = new MemcachedSessionIndex(_memcached, shards);
+	}
 
-				Future<Boolean> ok1 = _memcached.set(_clusterId, DISTANT_FUTURE, sessionInfo);
+	public long getScavengePeriodMs() {
+		return _scavengePeriodMs;
+	}
 
-				try {
-					ok1.get();
-				} catch (Exception e) {
-					throw new RuntimeException(e);
+	public void setScavengePeriodMs(long periodMs) {
+		_scavengePeriodMs = periodMs;
+		scheduleScavenging();
+	}
+
+	/**
+	 * Returns the time after which a session is considered expired. As
+	 * accesses are only persisted once they have advanced by a fraction of
+	 * the idle time, and then only by the next access flush, this is later
+	 * than the last persisted access plus the idle time by that much.
+	 */
+	protected long getExpiryTime(MemcachedSessionInfo sessionInfo) {
+		long maxIdleMs = sessionInfo.getMaxIdleMs();
+		return sessionInfo.getAccessed() + maxIdleMs + (long) (maxIdleMs * _accessPersistRatio) + Math.max(0, _accessFlushPeriodMs);
+	}
+	
+	/**
+	 * Returns the memcached expiration for the keys of a session, which with
+	 * TTL expiry is its expiry time.
+	 */
+	protected int getExpiration(MemcachedSessionInfo sessionInfo) {
+		long maxIdleMs = sessionInfo.getMaxIdleMs();
+		if (!_ttlExpiry || maxIdleMs <= 0) {
+			return DISTANT_FUTURE;
+		}
+		
+		long expiresMs = getExpiryTime(sessionInfo);
+		long secs = Math.max(1, (expiresMs - System.currentTimeMillis() + 999) / 1000);
+		if (secs > MAX_RELATIVE_EXPIRATION) {
+			return (int) Math.min(DISTANT_FUTURE, expiresMs / 1000);
+		}
+		return (int) secs;
+	}
+	
+	/**
+	 * Reads a session info, from this node's copy of the session or from the
+	 * near cache if they are enabled. A copy whose idle time has passed is
+	 * dropped rather than served.
+	 */
+	protected MemcachedSessionInfo loadSessionInfo(String clusterId) {
+		LocalSessionStore.LocalSession local = getLocalSession(clusterId);
+		if (local != null) {
+			MemcachedSessionInfo sessionInfo = local.getSessionInfo();
+			if (sessionInfo.getMaxIdleMs() <= 0 || getExpiryTime(sessionInfo) >= System.currentTimeMillis()) {
+				return sessionInfo;
+			}
+			if (_localSessions != null) {
+				_localSessions.remove(clusterId);
+			}
+			if (_fallbackSessions != null) {
+				_fallbackSessions.remove(clusterId);
+			}
+		}
+		if (_nearCache == null) {
+			try {
+				return (MemcachedSessionInfo) get(clusterId);
+			} catch (MemcachedUnavailableException e) {
+				return null;
+			}
+		}
+		
+		if (_breaker != null && !_breaker.allowRequest()) {
+			return null;
+		}
+		long start = System.nanoTime();
+		try {
+			MemcachedSessionInfo sessionInfo = _nearCache.get(clusterId, _transcoder);
+			succeeded(start);
+			return sessionInfo;
+		} catch (RuntimeException e) {
+			if (_breaker == null) {
+				throw e;
+			}
+			_breaker.failure();
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads a key through the circuit breaker, if there is one.
+	 * 
+	 * @throws MemcachedUnavailableException if the breaker is open or the
+	 *         read failed while a breaker is in use
+	 */
+	protected Object get(String key) {
+		if (_breaker != null && !_breaker.allowRequest()) {
+			throw new MemcachedUnavailableException("Circuit breaker open, not reading " + key);
+		}
+		long start = System.nanoTime();
+		try {
+			Object value = _memcached.get(key, _transcoder);
+			succeeded(start);
+			return value;
+		} catch (RuntimeException e) {
+			if (_breaker == null) {
+				throw e;
+			}
+			_breaker.failure();
+			throw new MemcachedUnavailableException("Could not read " + key, e);
+		}
+	}
+	
+	/**
+	 * Checks that a key exists through the circuit breaker, if there is one,
+	 * without transferring more than its value undecoded.
+	 * 
+	 * @throws MemcachedUnavailableException if the breaker is open or the
+	 *         read failed while a breaker is in use
+	 */
+	protected boolean exists(String key) {
+		if (_breaker != null && !_breaker.allowRequest()) {
+			throw new MemcachedUnavailableException("Circuit breaker open, not reading " + key);
+		}
+		long start = System.nanoTime();
+		try {
+			boolean exists = _memcached.exists(key);
+			succeeded(start);
+			return exists;
+		} catch (RuntimeException e) {
+			if (_breaker == null) {
+				throw e;
+			}
+			_breaker.failure();
+			throw new MemcachedUnavailableException("Could not read " + key, e);
+		}
+	}
+	
+	/**
+	 * Reads several keys through the circuit breaker, if there is one.
+	 * 
+	 * @throws MemcachedUnavailableException if the breaker is open or the
+	 *         read failed while a breaker is in use
+	 */
+	protected Map<String, Object> getBulk(Collection<String> keys) {
+		if (_breaker != null && !_breaker.allowRequest()) {
+			throw new MemcachedUnavailableException("Circuit breaker open, not reading " + keys.size() + " keys");
+		}
+		long start = System.nanoTime();
+		try {
+			Map<String, Object> values = _memcached.getBulk(keys, _transcoder);
+			succeeded(start);
+			return values;
+		} catch (RuntimeException e) {
+			if (_breaker == null) {
+				throw e;
+			}
+			_breaker.failure();
+			throw new MemcachedUnavailableException("Could not read " + keys.size() + " keys", e);
+		}
+	}
+	
+	private void succeeded(long startNanos) {
+		if (_breaker != null) {
+			_breaker.success(System.nanoTime() - startNanos);
+		}
+	}
+	
+	/**
+	 * Returns whether memcached is considered unavailable, in which case
+	 * sessions are read from and written to the local fallback store.
+	 */
+	protected boolean isDegraded() {
+		return _breaker != null && _breaker.getState() != MemcachedCircuitBreaker.State.CLOSED;
+	}
+	
+	/**
+	 * Returns the copy of the session in the fallback store, creating it
+	 * from the given info if needed, so that changes made while memcached is
+	 * unavailable are written once it is back.
+	 */
+	private LocalSessionStore.LocalSession keepLocally(String clusterId, MemcachedSessionInfo sessionInfo) {
+		LocalSessionStore.LocalSession fallback = _fallbackSessions.get(clusterId);
+		if (fallback == null) {
+			fallback = _fallbackSessions.put(clusterId, sessionInfo);
+			LocalSessionStore.LocalSession local = _localSessions == null ? null : _localSessions.get(clusterId);
+			if (local != null) {
+				fallback.getValues().putAll(local.getValues());
+			}
+		}
+		return fallback;
+	}
+	
+	/**
+	 * Writes the sessions kept in the fallback store back to memcached, least
+	 * recently used first, and stops at the first failure. While the breaker
+	 * is open it only tries once the open time is over, as the probe.
+	 */
+	protected void reconcile() {
+		if (_fallbackSessions == null || _fallbackSessions.size() == 0) {
+			return;
+		}
+		
+		for (Map.Entry<String, LocalSessionStore.LocalSession> entry : _fallbackSessions.getSessions().entrySet()) {
+			if (!_breaker.allowRequest()) {
+				return;
+			}
+			
+			String clusterId = entry.getKey();
+			LocalSessionStore.LocalSession local = entry.getValue();
+			MemcachedSessionInfo sessionInfo = local.getSessionInfo();
+			int expiration = getExpiration(sessionInfo);
+			
+			try {
+				List<Future<Boolean>> oks = new ArrayList<Future<Boolean>>();
+				oks.add(_memcached.set(clusterId, expiration, sessionInfo, _transcoder));
+				for (Map.Entry<String, Object> value : local.getValues().entrySet()) {
+					if (sessionInfo.getKeys().contains(value.getKey())) {
+						oks.add(_memcached.set(clusterId + "/" + value.getKey(), expiration, value.getValue(), _transcoder));
+					}
+				}
+				for (String name : local.getRemoved()) {
+					if (!sessionInfo.getKeys().contains(name)) {
+						oks.add(_memcached.delete(clusterId + "/" + name));
+					}
+				}
+				if (!await(oks)) {
+					return;
+				}
+				index(clusterId);
+			} catch (RuntimeException e) {
+				// the probe must report back, or the breaker stays half open until it expires
+				_breaker.failure();
+				return;
+			}
+			
+			_fallbackSessions.remove(clusterId);
+			if (_nearCache != null) {
+				_nearCache.invalidate(clusterId);
+			}
+			queueExpiry(clusterId, sessionInfo);
+		}
+	}
+	
+	private void index(String clusterId) {
+		long count = _index.add(clusterId);
+		if (count > 0) {
+			_sessionCount = (int) count;
+			if (count > _maxSessions) {
+				_maxSessions = (int) count;
+			}
+		}
+		if (_sessionIdManager instanceof MemcachedSessionIdManager) {
+			((MemcachedSessionIdManager) _sessionIdManager).addToIdFilter(clusterId);
+		}
+	}
+	
+	protected Future<Boolean> storeSessionInfo(String clusterId, int expiration, MemcachedSessionInfo sessionInfo) {
+		Future<Boolean> ok = _memcached.set(clusterId, expiration, sessionInfo, _transcoder);
+		sessionInfoStored(clusterId, sessionInfo);
+		return ok;
+	}
+	
+	private void sessionInfoStored(String clusterId, MemcachedSessionInfo sessionInfo) {
+		if (_nearCache != null) {
+			_nearCache.invalidate(clusterId);
+		}
+		LocalSessionStore.LocalSession local = getLocalSession(clusterId);
+		if (local != null) {
+			local.setSessionInfo(sessionInfo);
+		}
+	}
+	
+	/**
+	 * Records an access to be written by the next access flush, or right
+	 * away if flushing is disabled.
+	 */
+	protected void recordAccess(String clusterId, long time) {
+		Long previous = _pendingAccesses.put(clusterId, time);
+		if (previous != null && previous > time) {
+			_pendingAccesses.put(clusterId, previous);
+		}
+		
+		if (!isFlushingPeriodically()) {
+			flushAccesses();
+			flushExpiries();
+		}
+	}
+	
+	private boolean isFlushingPeriodically() {
+		return _accessFlushPeriodMs > 0 && _scheduler != null;
+	}
+	
+	/**
+	 * Writes the access times recorded since the previous flush, reading and
+	 * writing the session infos of all of them in pipelined batches. Without
+	 * TTL expiry the infos are written with cas, and a session changed in
+	 * between is retried on the next flush. With TTL expiry the attribute
+	 * keys are rewritten too, to extend their expiration; see
+	 * {@link #touch(Map)}. Nothing is flushed while memcached is
+	 * unavailable, and a flush that fails or runs out of time leaves its
+	 * accesses to the next one.
+	 */
+	protected void flushAccesses() {
+		if (_pendingAccesses.isEmpty() || isDegraded()) {
+			return;
+		}
+		
+		Map<String, Long> accesses = new HashMap<String, Long>();
+		for (Map.Entry<String, Long> entry : _pendingAccesses.entrySet()) {
+			// a newer access recorded meanwhile stays for the next flush
+			_pendingAccesses.remove(entry.getKey(), entry.getValue());
+			accesses.put(entry.getKey(), entry.getValue());
+		}
+		
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + _operationTimeoutMs;
+		Map<String, CASValue<Object>> touched = new HashMap<String, CASValue<Object>>();
+		Map<String, MemcachedSessionInfo> written = new HashMap<String, MemcachedSessionInfo>();
+		Map<String, Future<CASResponse>> cases = new HashMap<String, Future<CASResponse>>();
+		try {
+			Map<String, Future<CASValue<Object>>> currents = new HashMap<String, Future<CASValue<Object>>>();
+			for (String clusterId : accesses.keySet()) {
+				currents.put(clusterId, _memcached.asyncGets(clusterId, _transcoder));
+			}
+			
+			for (Map.Entry<String, Future<CASValue<Object>>> entry : currents.entrySet()) {
+				String clusterId = entry.getKey();
+				CASValue<Object> current = await(entry.getValue(), deadline);
+				if (current == null) {
+					continue;
+				}
+				
+				MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) current.getValue();
+				long accessed = accesses.get(clusterId);
+				if (sessionInfo.getAccessed() >= accessed) {
+					continue;
+				}
+				sessionInfo.setAccessed(accessed);
+				
+				if (_ttlExpiry) {
+					touched.put(clusterId, new CASValue<Object>(current.getCas(), sessionInfo));
+				} else {
+					cases.put(clusterId, _memcached.asyncCAS(clusterId, current.getCas(), sessionInfo, _transcoder));
+					written.put(clusterId, sessionInfo);
+				}
+			}
+			
+			for (Map.Entry<String, Future<CASResponse>> entry : cases.entrySet()) {
+				String clusterId = entry.getKey();
+				CASResponse response = await(entry.getValue(), deadline);
+				if (response == CASResponse.OK) {
+					// only now is the info known to be the current one
+					sessionInfoStored(clusterId, written.get(clusterId));
+					queueExpiry(clusterId, written.get(clusterId));
+				} else if (response == CASResponse.EXISTS) {
+					_pendingAccesses.putIfAbsent(clusterId, accesses.get(clusterId));
+				}
+			}
+		} catch (RuntimeException e) {
+			for (Map.Entry<String, Long> entry : accesses.entrySet()) {
+				_pendingAccesses.putIfAbsent(entry.getKey(), entry.getValue());
+			}
+			if (_breaker == null) {
+				throw e;
+			}
+			_breaker.failure();
+			return;
+		}
+		succeeded(start);
+		
+		for (String clusterId : touch(touched)) {
+			_pendingAccesses.putIfAbsent(clusterId, accesses.get(clusterId));
+		}
+	}
+	
+	/**
+	 * Rewrites the given session infos and all their attribute keys so that
+	 * their memcached expiration is recomputed from the infos, and files the
+	 * sessions under their new expiry times. Each info comes with the cas it
+	 * was read with. The client has no cas that sets an expiration, so the
+	 * keys are written with set once their cas have been checked again in
+	 * one pipelined batch: a session changed since it was read is skipped
+	 * rather than reverted.
+	 * 
+	 * @return the cluster ids of the sessions that were skipped, all of them
+	 *         while memcached is unavailable
+	 */
+	protected Set<String> touch(Map<String, CASValue<Object>> sessionInfos) {
+		if (sessionInfos.isEmpty()) {
+			return Collections.emptySet();
+		}
+		if (isDegraded()) {
+			return sessionInfos.keySet();
+		}
+		
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + _operationTimeoutMs;
+		Map<String, CASValue<Object>> values = new HashMap<String, CASValue<Object>>();
+		Set<String> skipped = new HashSet<String>();
+		List<Future<Boolean>> oks = new ArrayList<Future<Boolean>>();
+		try {
+			Map<String, Future<CASValue<Object>>> reads = new LinkedHashMap<String, Future<CASValue<Object>>>();
+			for (Map.Entry<String, CASValue<Object>> entry : sessionInfos.entrySet()) {
+				for (String name : ((MemcachedSessionInfo) entry.getValue().getValue()).getKeys()) {
+					String key = entry.getKey() + "/" + name;
+					reads.put(key, _memcached.asyncGets(key, _transcoder));
+				}
+			}
+			Map<String, Future<CASValue<Object>>> checks = new HashMap<String, Future<CASValue<Object>>>();
+			for (Map.Entry<String, Future<CASValue<Object>>> entry : reads.entrySet()) {
+				CASValue<Object> value = await(entry.getValue(), deadline);
+				if (value != null) {
+					values.put(entry.getKey(), value);
+					checks.put(entry.getKey(), _memcached.asyncGets(entry.getKey(), _transcoder));
+				}
+			}
+			for (String clusterId : sessionInfos.keySet()) {
+				checks.put(clusterId, _memcached.asyncGets(clusterId, _transcoder));
+			}
+			
+			for (Map.Entry<String, CASValue<Object>> entry : sessionInfos.entrySet()) {
+				String clusterId = entry.getKey();
+				MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) entry.getValue().getValue();
+				
+				boolean changed = !sameCas(entry.getValue(), await(checks.get(clusterId), deadline));
+				for (String name : sessionInfo.getKeys()) {
+					String key = clusterId + "/" + name;
+					changed |= values.containsKey(key) && !sameCas(values.get(key), await(checks.get(key), deadline));
+				}
+				if (changed) {
+					skipped.add(clusterId);
+					continue;
+				}
+				
+				int expiration = getExpiration(sessionInfo);
+				oks.add(storeSessionInfo(clusterId, expiration, sessionInfo));
+				for (String name : sessionInfo.getKeys()) {
+					CASValue<Object> value = values.get(clusterId + "/" + name);
+					if (value != null) {
+						oks.add(_memcached.set(clusterId + "/" + name, expiration, value.getValue(), _transcoder));
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			if (_breaker == null) {
+				throw e;
+			}
+			_breaker.failure();
+			return sessionInfos.keySet();
+		}
+		succeeded(start);
+		if (!await(oks)) {
+			return sessionInfos.keySet();
+		}
+		
+		for (Map.Entry<String, CASValue<Object>> entry : sessionInfos.entrySet()) {
+			if (!skipped.contains(entry.getKey())) {
+				queueExpiry(entry.getKey(), (MemcachedSessionInfo) entry.getValue().getValue());
+			}
+		}
+		return skipped;
+	}
+	
+	private static boolean sameCas(CASValue<Object> read, CASValue<Object> current) {
+		return current != null && current.getCas() == read.getCas();
+	}
+	
+	private LocalSessionStore.LocalSession getLocalSession(String clusterId) {
+		LocalSessionStore.LocalSession local = _fallbackSessions == null ? null : _fallbackSessions.get(clusterId);
+		if (local == null && _localSessions != null) {
+			local = _localSessions.get(clusterId);
+		}
+		return local;
+	}
+	
+	/**
+	 * Files the session in the expiry bucket of its current expiry time, if
+	 * the expiry wheel is in use, with the next access flush or right away
+	 * if flushing is disabled.
+	 */
+	protected void scheduleExpiry(String clusterId, MemcachedSessionInfo sessionInfo) {
+		queueExpiry(clusterId, sessionInfo);
+		if (!isFlushingPeriodically()) {
+			flushExpiries();
+		}
+	}
+	
+	private void queueExpiry(String clusterId, MemcachedSessionInfo sessionInfo) {
+		if (_expiryWheel != null && sessionInfo.getMaxIdleMs() > 0) {
+			_pendingExpiries.put(clusterId, getExpiryTime(sessionInfo));
+		}
+	}
+	
+	/**
+	 * Files the sessions queued since the previous flush in the expiry wheel,
+	 * with one pipelined update per bucket shard. Filing is best effort: the
+	 * sessions that could not be filed are retried by the next flush, and
+	 * the scavenger checks the whole index every index scan period anyway.
+	 */
+	protected void flushExpiries() {
+		MemcachedExpiryWheel expiryWheel = _expiryWheel;
+		if (expiryWheel == null || _pendingExpiries.isEmpty() || isDegraded()) {
+			return;
+		}
+		
+		long now = System.currentTimeMillis();
+		Map<String, Long> expiries = new HashMap<String, Long>();
+		for (Map.Entry<String, Long> entry : _pendingExpiries.entrySet()) {
+			_pendingExpiries.remove(entry.getKey(), entry.getValue());
+			// never file into a slot the scavenger may already have processed
+			expiries.put(entry.getKey(), Math.max(entry.getValue(), now));
+		}
+		
+		Set<String> failed;
+		try {
+			failed = expiryWheel.schedule(expiries);
+		} catch (RuntimeException e) {
+			Log.ignore(e);
+			failed = expiries.keySet();
+		}
+		for (String clusterId : failed) {
+			_pendingExpiries.putIfAbsent(clusterId, expiries.get(clusterId));
+		}
+	}
+	
+	/**
+	 * Waits for an operation until the given deadline.
+	 * 
+	 * @throws RuntimeException if the operation failed or did not complete
+	 *         in time
+	 */
+	private static <T> T await(Future<T> future, long deadline) {
+		try {
+			return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Waits for the given operations together, for at most the operation
+	 * timeout.
+	 * 
+	 * @return false if an operation failed or timed out while a circuit
+	 *         breaker is in use; without one, a RuntimeException is thrown
+	 */
+	private boolean await(List<Future<Boolean>> oks) {
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + _operationTimeoutMs;
+		try {
+			for (Future<Boolean> ok : oks) {
+				ok.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (Exception e) {
+			_stats.error(MemcachedStats.Operation.BATCH);
+			if (_breaker == null) {
+				throw new RuntimeException(e);
+			}
+			_breaker.failure();
+			return false;
+		}
+		_stats.record(MemcachedStats.Operation.BATCH, System.nanoTime() - start);
+		succeeded(start);
+		return true;
+	}
+
+	public boolean isScavengerElection() {
+		return _scavengerLease != null;
+	}
+
+	/**
+	 * When enabled (the default), nodes sharing the memcached cluster elect
+	 * one of them through a lease on {@link #_JSCAVENGER} and only that node
+	 * scavenges. If it dies the lease expires and another node takes over.
+	 */
+	public void setScavengerElection(boolean election) {
+		_scavengerLease = election ? new MemcachedLease(_memcached, _JSCAVENGER, UUID.randomUUID().toString()) : null;
+	}
+
+	public boolean isExpiryWheel() {
+		return _expiryWheel != null;
+	}
+
+	/**
+	 * When enabled, sessions are filed into per time slot expiry buckets as
+	 * they are created and accessed, and the scavenger only checks the
+	 * buckets whose slot has passed instead of the whole index. The first
+	 * pass on a memcached cluster still scans the whole index.
+	 */
+	public void setExpiryWheel(boolean expiryWheel) {
+		_expiryWheel = expiryWheel ? new MemcachedExpiryWheel(_memcached, _expirySlotMs, _expiryShards) : null;
+	}
+
+	public long getExpirySlotMs() {
+		return _expirySlotMs;
+	}
+
+	/**
+	 * Sets the time span covered by one expiry bucket. Must be the same on
+	 * every node.
+	 */
+	public void setExpirySlotMs(long slotMs) {
+		_expirySlotMs = slotMs;
+		if (_expiryWheel != null) {
+			_expiryWheel = new MemcachedExpiryWheel(_memcached, slotMs, _expiryShards);
+		}
+	}
+
+	public int getExpiryShards() {
+		return _expiryShards;
+	}
+
+	/**
+	 * Sets the number of keys each expiry bucket is spread over. Must be the
+	 * same on every node.
+	 */
+	public void setExpiryShards(int shards) {
+		_expiryShards = shards;
+		if (_expiryWheel != null) {
+			_expiryWheel = new MemcachedExpiryWheel(_memcached, _expirySlotMs, shards);
+		}
+	}
+
+	public long getIndexScanMs() {
+		return _indexScanMs;
+	}
+
+	/**
+	 * Sets how often the scavenging node also checks the whole index while
+	 * the expiry wheel is in use, to find the sessions that could not be
+	 * filed in it (an hour by default). Zero or a negative value disables
+	 * these passes.
+	 */
+	public void setIndexScanMs(long scanMs) {
+		_indexScanMs = scanMs;
+	}
+
+	public long getCountReconcileMs() {
+		return _countReconcileMs;
+	}
+
+	/**
+	 * Sets how often the scavenging node recounts the session index to
+	 * correct the session counter read by {@link #getSessions()}. Zero or a
+	 * negative value disables reconciliation.
+	 */
+	public void setCountReconcileMs(long reconcileMs) {
+		_countReconcileMs = reconcileMs;
+	}
+
+	public int getScavengePageSize() {
+		return _scavengePageSize;
+	}
+
+	/**
+	 * Sets how many session infos the scavenger fetches with one getBulk.
+	 */
+	public void setScavengePageSize(int pageSize) {
+		_scavengePageSize = pageSize;
+	}
+
+	public long getScavengeBudgetMs() {
+		return _scavengeBudgetMs;
+	}
+
+	/**
+	 * Sets how long one scavenger pass may run before it stops at the next
+	 * shard boundary; the following pass continues from there. Zero or a
+	 * negative value lets every pass scan the whole index.
+	 */
+	public void setScavengeBudgetMs(long budgetMs) {
+		_scavengeBudgetMs = budgetMs;
+	}
+
+	public boolean isTtlExpiry() {
+		return _ttlExpiry;
+	}
+
+	/**
+	 * When enabled, session keys are stored with an expiration derived from
+	 * the session's expiry time and refreshed by the access flushes,
+	 * so memcached drops idle sessions itself. The scavenger is then only
+	 * needed to prune the session index and can run rarely.
+	 */
+	public void setTtlExpiry(boolean ttlExpiry) {
+		_ttlExpiry = ttlExpiry;
+	}
+
+	/**
+	 * Returns the stats of the memcached operations of this manager, which
+	 * are also registered as an MBean while it is started.
+	 */
+	public MemcachedStats getStats() {
+		return _stats;
+	}
+
+	public MemcachedNearCache getNearCache() {
+		return _nearCache;
+	}
+
+	public int getNearCacheSize() {
+		return _nearCache == null ? 0 : _nearCache.getMaxEntries();
+	}
+
+	/**
+	 * Sets how many session infos are cached on this node, see
+	 * {@link MemcachedNearCache}. Zero (the default) disables the cache.
+	 * Attribute writes still read the current info from memcached, but
+	 * reads may see changes made by other nodes, including invalidation,
+	 * only after the cache staleness.
+	 */
+	public void setNearCacheSize(int size) {
+		_nearCache = size > 0 ? new MemcachedNearCache(_memcached, size, _nearCacheStalenessMs) : null;
+	}
+
+	public long getNearCacheStalenessMs() {
+		return _nearCacheStalenessMs;
+	}
+
+	/**
+	 * Sets how long a cached session info is used before it is checked
+	 * against memcached again.
+	 */
+	public void setNearCacheStalenessMs(long stalenessMs) {
+		_nearCacheStalenessMs = stalenessMs;
+		if (_nearCache != null) {
+			_nearCache = new MemcachedNearCache(_memcached, _nearCache.getMaxEntries(), stalenessMs);
+		}
+	}
+
+	public boolean isAffinity() {
+		return _localSessions != null;
+	}
+
+	/**
+	 * When enabled, the node whose worker name ends the session id, to which
+	 * a sticky load balancer routes the session's requests, keeps the
+	 * session info and attribute values in memory and only writes them
+	 * through (or behind) to memcached. Other nodes read the session from
+	 * memcached. Changes made to a session by a node that does not own it
+	 * are not seen by the owner until the session moves.
+	 */
+	public void setAffinity(boolean affinity) {
+		_localSessions = affinity ? new LocalSessionStore(_affinityMaxSessions) : null;
+	}
+
+	public int getAffinityMaxSessions() {
+		return _affinityMaxSessions;
+	}
+
+	/**
+	 * Sets how many sessions are kept in memory with affinity; the least
+	 * recently used ones are read from memcached again.
+	 */
+	public void setAffinityMaxSessions(int maxSessions) {
+		_affinityMaxSessions = maxSessions;
+		if (_localSessions != null) {
+			_localSessions = new LocalSessionStore(maxSessions);
+		}
+	}
+
+	public long getOperationTimeoutMs() {
+		return _operationTimeoutMs;
+	}
+
+	/**
+	 * Sets how long a request waits for the writes it issues to memcached.
+	 * Reads are bounded by the operation timeout of the client factory.
+	 */
+	public void setOperationTimeoutMs(long timeoutMs) {
+		_operationTimeoutMs = timeoutMs;
+	}
+
+	public MemcachedCircuitBreaker getCircuitBreaker() {
+		return _breaker;
+	}
+
+	/**
+	 * Sets the circuit breaker guarding memcached operations made from
+	 * requests, or null (the default) for none. While the breaker is open,
+	 * sessions that this node has a local copy of are served from it, new
+	 * sessions and session changes are kept in a bounded local fallback
+	 * store, and other sessions are treated as missing. The access flusher
+	 * writes the fallback store back to memcached once it is available
+	 * again.
+	 */
+	public void setCircuitBreaker(MemcachedCircuitBreaker breaker) {
+		_breaker = breaker;
+		_fallbackSessions = breaker != null ? new LocalSessionStore(_fallbackMaxSessions) : null;
+	}
+
+	public int getFallbackMaxSessions() {
+		return _fallbackMaxSessions;
+	}
+
+	/**
+	 * Sets how many sessions the fallback store keeps; the changes of the
+	 * least recently used ones are lost beyond that.
+	 */
+	public void setFallbackMaxSessions(int maxSessions) {
+		_fallbackMaxSessions = maxSessions;
+		if (_fallbackSessions != null) {
+			_fallbackSessions = new LocalSessionStore(maxSessions);
+		}
+	}
+
+	public long getRemoveTimeoutMs() {
+		return _removeTimeoutMs;
+	}
+
+	/**
+	 * Sets how long {@link #removeSessions(Collection)} waits for all its
+	 * deletes together.
+	 */
+	public void setRemoveTimeoutMs(long timeoutMs) {
+		_removeTimeoutMs = timeoutMs;
+	}
+
+	public double getAccessPersistRatio() {
+		return _accessPersistRatio;
+	}
+
+	/**
+	 * Sets the fraction of a session's idle time by which its last access
+	 * has to advance before it is written to memcached (0.1 by default).
+	 * Sessions expire up to that much plus the access flush period later
+	 * than their idle time.
+	 */
+	public void setAccessPersistRatio(double ratio) {
+		_accessPersistRatio = ratio;
+	}
+
+	public long getAccessFlushPeriodMs() {
+		return _accessFlushPeriodMs;
+	}
+
+	/**
+	 * Sets how often the accesses recorded by requests are written to
+	 * memcached in one batch. Zero or a negative value writes each one
+	 * from the request that records it.
+	 */
+	public void setAccessFlushPeriodMs(long periodMs) {
+		_accessFlushPeriodMs = periodMs;
+		scheduleAccessFlushing();
+	}
+
+	public boolean isWriteBehind() {
+		return _writeBehind;
+	}
+	
+	private boolean isDeferred() {
+		return _writeBehind || _storage != Storage.PER_ATTRIBUTE;
+	}
+
+	/**
+	 * When enabled, attribute mutations are buffered in the session and
+	 * written to memcached in one batch when the request completes, instead
+	 * of on every setAttribute/removeAttribute call.
+	 */
+	public void setWriteBehind(boolean writeBehind) {
+		_writeBehind = writeBehind;
+	}
+
+	public Storage getStorage() {
+		return _storage;
+	}
+
+	/**
+	 * Sets how attributes are stored. With {@link Storage#SINGLE_BLOB} a
+	 * session is read once per request and written back once when the
+	 * request completes, as with write-behind; concurrent requests on the
+	 * same session then overwrite each other's changes.
+	 */
+	public void setStorage(Storage storage) {
+		_storage = storage;
+	}
+	
+	public int getInlineThreshold() {
+		return _inlineThreshold;
+	}
+
+	/**
+	 * Sets the serialized size in bytes up to which attributes are stored
+	 * inline with {@link Storage#HYBRID}. Larger attributes are only read
+	 * when they are asked for and only written when they are set.
+	 */
+	public void setInlineThreshold(int inlineThreshold) {
+		_inlineThreshold = inlineThreshold;
+	}
+	
+	protected boolean isInline(byte[] value) {
+		switch (_storage) {
+		case SINGLE_BLOB:
+			return true;
+		case HYBRID:
+			return value.length <= _inlineThreshold;
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Writes an attribute to its own key, from the bytes it was serialized to
+	 * for the inline size check if there are any and the transcoder can take
+	 * them as they are.
+	 */
+	private Future<Boolean> storeAttribute(String key, int expiration, Object value, byte[] data) {
+		if (data != null && _transcoder instanceof MemcachedSessionTranscoder) {
+			return _memcached.set(key, expiration, data, ((MemcachedSessionTranscoder) _transcoder).getSerializedTranscoder());
+		}
+		return _memcached.set(key, expiration, value, _transcoder);
+	}
+	
+	protected byte[] serialize(Object value) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(value);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Non-serializable attribute value " + value, e);
+		}
+	}
+	
+	protected Object deserialize(byte[] data) {
+		final ClassLoader loader = _loader != null ? _loader : Thread.currentThread().getContextClassLoader();
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data)) {
+				@Override
+				protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+					try {
+						return Class.forName(desc.getName(), false, loader);
+					} catch (ClassNotFoundException e) {
+						return super.resolveClass(desc);
+					}
+				}
+			};
+			return in.readObject();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public class Session extends AbstractSessionManager.Session {
+		
+		/**
+		 * 
+		 */
+		private static final long serialVersionUID = -2428097351341507674L;
+		
+		private final Map<String, Object> _pending = new LinkedHashMap<String, Object>();
+		private final Map<String, Object> _cache = new HashMap<String, Object>();
+		private long _savedAccessed;
+		private MemcachedSessionInfo _sessionInfo;
+		private Map<String, Object> _unbound;
+		// a new session has no info to read until addSession has written it
+		private boolean _unsaved;
+
+		protected Session(HttpServletRequest request) {
+			super(request);
+			_savedAccessed = _created;
+			_unsaved = true;
+		}
+		
+		protected Session(MemcachedSessionInfo sessionInfo, String clusterId) {
+			super(sessionInfo.getCreated(), clusterId);
+			_idChanged = sessionInfo.isIdChanged();
+			_maxIdleMs = sessionInfo.getMaxIdleMs();
+			_savedAccessed = sessionInfo.getAccessed();
+			_sessionInfo = sessionInfo;
+		}
+		
+		/**
+		 * Returns the session info. With per-attribute storage it is read on
+		 * every call, otherwise it is read once per request and changes are
+		 * made to that copy until the request completes.
+		 */
+		protected MemcachedSessionInfo getSessionInfo() {
+			if (_storage == Storage.PER_ATTRIBUTE || _sessionInfo == null) {
+				MemcachedSessionInfo sessionInfo = loadSessionInfo(_clusterId);
+				if (sessionInfo == null && _sessionInfo != null && isDegraded()) {
+					// memcached is unavailable, go on with the info the session was loaded with
+					return new MemcachedSessionInfo(_sessionInfo);
+				}
+				if (_storage != Storage.PER_ATTRIBUTE) {
+					_sessionInfo = sessionInfo;
+				}
+				return sessionInfo;
+			}
+			return _sessionInfo;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		protected Map newAttributeMap() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public synchronized void setAttribute(String name, Object value) {
+			if (value == null) {
+				removeAttribute(name);
+				return;
+			}
+			
+			_pending.put(name, value);
+			if (!isDeferred()) {
+				flush();
+			}
+		}
+
+		@Override
+		public synchronized Object getAttribute(String name) {
+			if (_pending.containsKey(name)) {
+				Object value = _pending.get(name);
+				return value == REMOVED ? null : value;
+			}
+			
+			Object value = _cache.get(name);
+			if (value != null) {
+				return value == REMOVED ? null : value;
+			}
+			
+			value = loadAttribute(name);
+			loaded(name, value);
+			return value;
+		}
+		
+		private void loaded(String name, Object value) {
+			_cache.put(name, value == null ? REMOVED : value);
+			if (value instanceof HttpSessionActivationListener) {
+				((HttpSessionActivationListener) value).sessionDidActivate(new HttpSessionEvent(this));
+			}
+		}
+		
+		/**
+		 * Keeps the attribute values for {@link #invalidated()}, as they
+		 * cannot be read once the session has been removed. Values this
+		 * session has read or changed are taken as they are; the others
+		 * come from the given info, which may be null, and stored values.
+		 */
+		synchronized void prepareInvalidation(MemcachedSessionInfo sessionInfo, Map<String, Object> stored) {
+			Set<String> names = new LinkedHashSet<String>();
+			if (sessionInfo != null) {
+				names.addAll(sessionInfo.getKeys());
+				names.addAll(sessionInfo.getAttributes().keySet());
+			}
+			names.addAll(_pending.keySet());
+			
+			_unbound = new LinkedHashMap<String, Object>();
+			for (String name : names) {
+				Object value;
+				if (_pending.containsKey(name)) {
+					value = _pending.get(name);
+				} else if (_cache.containsKey(name)) {
+					value = _cache.get(name);
+				} else {
+					byte[] data = sessionInfo.getAttributes().get(name);
+					value = data != null ? deserialize(data) : stored.get(name);
+					loaded(name, value);
+				}
+				if (value != null && value != REMOVED) {
+					_unbound.put(name, value);
+				}
+			}
+		}
+		
+		/**
+		 * Notifies this context's listeners that the session has been
+		 * invalidated, as Jetty does for a session of its own: the session
+		 * listeners first, then the attribute values kept by
+		 * {@link #prepareInvalidation(MemcachedSessionInfo, Map)} are unbound.
+		 */
+		void invalidated() {
+			HttpSessionEvent event = new HttpSessionEvent(this);
+			for (int i = LazyList.size(_sessionListeners); i-- > 0;) {
+				((HttpSessionListener) LazyList.get(_sessionListeners, i)).sessionDestroyed(event);
+			}
+			
+			Map<String, Object> unbound;
+			synchronized (this) {
+				unbound = _unbound == null ? Collections.<String, Object>emptyMap() : _unbound;
+				_unbound = null;
+				_pending.clear();
+				_cache.clear();
+			}
+			for (Map.Entry<String, Object> entry : unbound.entrySet()) {
+				unbindValue(entry.getKey(), entry.getValue());
+				HttpSessionBindingEvent bindingEvent = new HttpSessionBindingEvent(this, entry.getKey(), entry.getValue());
+				for (int i = 0; i < LazyList.size(_sessionAttributeListeners); i++) {
+					((HttpSessionAttributeListener) LazyList.get(_sessionAttributeListeners, i)).attributeRemoved(bindingEvent);
+				}
+			}
+		}
+
+		private Object loadAttribute(String name) {
+			LocalSessionStore.LocalSession local = getLocalSession(_clusterId);
+			if (local != null) {
+				Object value = local.getValue(name);
+				if (value != null) {
+					return value;
+				}
+			}
+			
+			Object value = loadStoredAttribute(name);
+			if (local != null && value != null && !(value instanceof HttpSessionActivationListener)) {
+				local.setValue(name, value);
+			}
+			return value;
+		}
+		
+		private Object loadStoredAttribute(String name) {
+			if (_storage != Storage.PER_ATTRIBUTE) {
+				MemcachedSessionInfo sessionInfo = getSessionInfo();
+				if (sessionInfo == null) {
+					return null;
+				}
+				byte[] data = sessionInfo.getAttributes().get(name);
+				if (data != null) {
+					return deserialize(data);
+				}
+				if (!sessionInfo.getKeys().contains(name)) {
+					return null;
+				}
+			}
+			try {
+				return get(_clusterId + "/" + name);
+			} catch (MemcachedUnavailableException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public synchronized Enumeration<String> getAttributeNames() {
+			MemcachedSessionInfo sessionInfo = getSessionInfo();
+			if (sessionInfo == null) {
+				return Collections.enumeration(Collections.<String>emptySet());
+			}
+			if (_pending.isEmpty() && sessionInfo.getAttributes().isEmpty()) {
+				return Collections.enumeration(sessionInfo.getKeys());
+			}
+			
+			Set<String> names = new HashSet<String>(sessionInfo.getKeys());
+			names.addAll(sessionInfo.getAttributes().keySet());
+			for (Map.Entry<String, Object> entry : _pending.entrySet()) {
+				if (entry.getValue() == REMOVED) {
+					names.remove(entry.getKey());
+				} else {
+					names.add(entry.getKey());
+				}
+			}
+			return Collections.enumeration(names);
+		}
+
+		@Override
+		public synchronized void removeAttribute(String name) {
+			_pending.put(name, REMOVED);
+			if (!isDeferred()) {
+				flush();
+			}
+		}
+		
+		/**
+		 * Writes the buffered attribute mutations to memcached. All sets and
+		 * deletes are issued before any of them is awaited, so the whole batch
+		 * is pipelined on the client connection.
+		 */
+		protected synchronized void flush() {
+			if (_pending.isEmpty()) {
+				return;
+			}
+			
+			// key changes must be made to the current info, not to a cached copy
+			LocalSessionStore.LocalSession local = getLocalSession(_clusterId);
+			boolean degraded = isDegraded();
+			MemcachedSessionInfo sessionInfo;
+			try {
+				sessionInfo = _storage == Storage.PER_ATTRIBUTE && local == null && !degraded ? (MemcachedSessionInfo) get(_clusterId) : getSessionInfo();
+			} catch (MemcachedUnavailableException e) {
+				degraded = true;
+				sessionInfo = _sessionInfo == null ? null : new MemcachedSessionInfo(_sessionInfo);
+			}
+			if (sessionInfo == null) {
+				// session has been removed in the meantime
+				_pending.clear();
+				_cache.clear();
+				return;
+			}
+			if (_accessed > sessionInfo.getAccessed()) {
+				// the info is written anyway if it changes, so it might as well carry the access
+				sessionInfo.setAccessed(_accessed);
+			}
+			Set<String> keys = sessionInfo.getKeys();
+			Map<String, byte[]> attributes = sessionInfo.getAttributes();
+			boolean infoChanged = false;
+			int expiration = getExpiration(sessionInfo);
+			
+			List<Future<Boolean>> oks = new ArrayList<Future<Boolean>>(_pending.size() + 1);
+			for (Map.Entry<String, Object> entry : _pending.entrySet()) {
+				String name = entry.getKey();
+				Object value = entry.getValue();
+				
+				if (value == REMOVED) {
+					boolean wasKey = keys.remove(name);
+					infoChanged |= wasKey;
+					infoChanged |= attributes.remove(name) != null;
+					if (!degraded && (wasKey || _storage == Storage.PER_ATTRIBUTE)) {
+						oks.add(_memcached.delete(_clusterId + "/" + name));
+					}
+					_cache.put(name, REMOVED);
+					if (local != null && !degraded) {
+						local.removeValue(name);
+					}
+				} else {
+					if (value instanceof HttpSessionActivationListener) {
+						((HttpSessionActivationListener) value).sessionWillPassivate(new HttpSessionEvent(this));
+						// a passivated value must be re-activated from its stored copy
+						_cache.remove(name);
+						if (local != null && !degraded) {
+							local.removeValue(name);
+						}
+					} else {
+						_cache.put(name, value);
+						if (local != null && !degraded) {
+							local.setValue(name, value);
+						}
+					}
+					
+					byte[] data = _storage == Storage.PER_ATTRIBUTE ? null : serialize(value);
+					if (data != null && isInline(data)) {
+						attributes.put(name, data);
+						infoChanged = true;
+						if (keys.remove(name) && !degraded) {
+							oks.add(_memcached.delete(_clusterId + "/" + name));
+						}
+					} else {
+						infoChanged |= attributes.remove(name) != null;
+						infoChanged |= keys.add(name);
+						if (!degraded) {
+							oks.add(storeAttribute(_clusterId + "/" + name, expiration, value, data));
+						}
+					}
+				}
+			}
+			Map<String, Object> flushed = new LinkedHashMap<String, Object>(_pending);
+			_pending.clear();
+			
+			if (!degraded) {
+				if (infoChanged) {
+					oks.add(storeSessionInfo(_clusterId, expiration, sessionInfo));
+				}
+				if (await(oks)) {
+					return;
+				}
+			}
+			
+			// memcached is unavailable, keep the whole change locally until it is back
+			local = keepLocally(_clusterId, sessionInfo);
+			local.setSessionInfo(sessionInfo);
+			for (Map.Entry<String, Object> entry : flushed.entrySet()) {
+				if (entry.getValue() == REMOVED) {
+					local.removeValue(entry.getKey());
+				} else {
+					local.setValue(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		
+		/**
+		 * Writes the session info, or keeps it in the fallback store if
+		 * memcached is unavailable.
+		 * 
+		 * @return whether the info was written to memcached
+		 */
+		private boolean store(MemcachedSessionInfo sessionInfo, int expiration) {
+			if (!isDegraded() && await(Collections.singletonList(storeSessionInfo(_clusterId, expiration, sessionInfo)))) {
+				return true;
+			}
+			keepLocally(_clusterId, sessionInfo).setSessionInfo(sessionInfo);
+			return false;
+		}
+		
+		/**
+		 * Records the access for the access flusher once it has advanced by
+		 * more than the persist ratio of the idle time since the access that
+		 * was last persisted.
+		 */
+		@Override
+		protected void access(long time) {
+			super.access(time);
+			
+			if (_maxIdleMs > 0 && time - _savedAccessed > _maxIdleMs * _accessPersistRatio) {
+				_savedAccessed = time;
+				recordAccess(_clusterId, time);
+			}
+		}
+		
+		/**
+		 * Writes the max idle time of the given info to the current info in
+		 * memcached, and extends the expiration of all the session's keys.
+		 * The current info is read again if the session changes meanwhile.
+		 */
+		protected synchronized void touch(MemcachedSessionInfo sessionInfo) {
+			for (int attempt = 0; attempt < TOUCH_ATTEMPTS; attempt++) {
+				CASValue<Object> current;
+				long start = System.nanoTime();
+				try {
+					current = _memcached.gets(_clusterId, _transcoder);
+					succeeded(start);
+				} catch (RuntimeException e) {
+					if (_breaker == null) {
+						throw e;
+					}
+					_breaker.failure();
+					store(sessionInfo, getExpiration(sessionInfo));
+					return;
+				}
+				if (current == null) {
+					// session has been removed in the meantime
+					return;
+				}
+				
+				MemcachedSessionInfo stored = (MemcachedSessionInfo) current.getValue();
+				stored.setMaxIdleMs(sessionInfo.getMaxIdleMs());
+				stored.setAccessed(Math.max(stored.getAccessed(), sessionInfo.getAccessed()));
+				Map<String, CASValue<Object>> touched = Collections.singletonMap(_clusterId, new CASValue<Object>(current.getCas(), stored));
+				if (MemcachedSessionManager.this.touch(touched).isEmpty()) {
+					_savedAccessed = stored.getAccessed();
+					if (!isFlushingPeriodically()) {
+						flushExpiries();
+					}
+					return;
+				}
+				if (isDegraded()) {
+					store(stored, getExpiration(stored));
+					return;
+				}
+			}
+			throw new IllegalStateException("Could not write the max idle time of session " + _clusterId + ", it kept changing");
+		}
+		
+		@Override
+		protected void complete() {
+			synchronized (this) {
+				flush();
+				// the session may be changed by other nodes before the next request
+				_cache.clear();
+				_sessionInfo = null;
+			}
+			super.complete();
+		}
+
+		@Override
+		protected synchronized void willPassivate() {
+			// all are already passivated
+		}
+
+		@Override
+		protected synchronized void didActivate() {
+			// 
+		}
+		
+		@Override
+		protected String getClusterId() {
+			return _clusterId;
+		}
+		
+		@Override
+		public void setIdChanged(final boolean changed) {
+			super.setIdChanged(changed);
+
+			MemcachedSessionInfo sessionInfo = getSessionInfo();
+			if (sessionInfo != null) {
+				sessionInfo.setIdChanged(changed);
+				store(sessionInfo, getExpiration(sessionInfo));
+			}
+		}
+		
+		@Override
+		public boolean isIdChanged() {
+			
+			MemcachedSessionInfo sessionInfo = getSessionInfo();
+			if (sessionInfo != null) {
+				_idChanged = sessionInfo.isIdChanged();
+			}
+
+			return super.isIdChanged();
+		}
+		
+		@Override
+		public void setMaxInactiveInterval(int secs) {
+			super.setMaxInactiveInterval(secs);
+			if (_unsaved) {
+				return;
+			}
+
+			MemcachedSessionInfo sessionInfo = getSessionInfo();
+			if (sessionInfo != null) {
+				sessionInfo.setMaxIdleMs(_maxIdleMs);
+
+				if (isDegraded()) {
+					store(sessionInfo, getExpiration(sessionInfo));
+					return;
+				}
+				
+				if (_ttlExpiry) {
+					// attribute keys have to follow the new expiration too
+					touch(sessionInfo);
+					return;
+				}
+				
+				if (store(sessionInfo, DISTANT_FUTURE)) {
+					scheduleExpiry(_clusterId, sessionInfo);
 				}
 			}
 		}
 
 		@Override
 		public int getMaxInactiveInterval() {
+			if (_unsaved) {
+				return super.getMaxInactiveInterval();
+			}
 			
-			MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) _memcached.get(_clusterId);
+			MemcachedSessionInfo sessionInfo = getSessionInfo();
 			if (sessionInfo != null) {
 				_maxIdleMs = sessionInfo.getMaxIdleMs();
 			}
@@ -0,0 +1,113 @@
+package memcachedsession.jetty;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only view of the sessions of a {@link MemcachedSessionManager}.
+ * Sessions are loaded from memcached only when they are looked up, or page
+ * by page with getBulk while the view is iterated, so creating the view is
+ * free and iterating it never holds more than one page of sessions.
+ * <p>
+ * The view is not a snapshot: sessions created or removed while it is used
+ * may or may not show up, and {@link #size()} is read from the session
+ * counter rather than from the sessions actually iterated.
+ */
+public class MemcachedSessionMap extends AbstractMap<String, MemcachedSessionManager.Session> {
+
+	private final MemcachedSessionManager _manager;
+	private final MemcachedSessionIndex _index;
+	private final int _pageSize;
+
+	MemcachedSessionMap(MemcachedSessionManager manager, MemcachedSessionIndex index, int pageSize) {
+		_manager = manager;
+		_index = index;
+		_pageSize = pageSize;
+	}
+
+	@Override
+	public MemcachedSessionManager.Session get(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		return _manager.getSession((String) key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return _index.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return !entrySet().iterator().hasNext();
+	}
+
+	@Override
+	public Set<Map.Entry<String, MemcachedSessionManager.Session>> entrySet() {
+		return new AbstractSet<Map.Entry<String, MemcachedSessionManager.Session>>() {
+
+			@Override
+			public Iterator<Map.Entry<String, MemcachedSessionManager.Session>> iterator() {
+				return new PagingIterator();
+			}
+
+			@Override
+			public int size() {
+				return MemcachedSessionMap.this.size();
+			}
+		};
+	}
+
+	/**
+	 * Walks the index shard by shard and loads the sessions of each shard in
+	 * pages, skipping ids whose session is already gone.
+	 */
+	private class PagingIterator implements Iterator<Map.Entry<String, MemcachedSessionManager.Session>> {
+
+		private int _shard = 0;
+		private List<String> _clusterIds = Collections.emptyList();
+		private int _offset = 0;
+		private Iterator<Map.Entry<String, MemcachedSessionManager.Session>> _page = Collections.<Map.Entry<String, MemcachedSessionManager.Session>>emptyList().iterator();
+
+		public boolean hasNext() {
+			while (!_page.hasNext()) {
+				while (_offset >= _clusterIds.size()) {
+					if (_shard >= _index.getShards()) {
+						return false;
+					}
+					_clusterIds = new ArrayList<String>(_index.getClusterIds(_shard++));
+					_offset = 0;
+				}
+
+				List<String> page = _clusterIds.subList(_offset, Math.min(_offset + _pageSize, _clusterIds.size()));
+				_offset += page.size();
+				_page = _manager.loadSessions(page).entrySet().iterator();
+			}
+			return true;
+		}
+
+		public Map.Entry<String, MemcachedSessionManager.Session> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return _page.next();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
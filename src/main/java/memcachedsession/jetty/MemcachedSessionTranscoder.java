@@ -0,0 +1,155 @@
+package memcachedsession.jetty;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Transcoder for session values. Everything is handled like the default
+ * spymemcached transcoder does, except {@link MemcachedSessionInfo}, which is
+ * written with a {@link SessionInfoCodec} when one is set.
+ * <p>
+ * Session infos written by a codec are tagged with their own flag and are
+ * always decoded, with the configured codec or the compact one, so nodes can
+ * switch from Java serialization to a codec one at a time.
+ * <p>
+ * Values serializing to more than the compression threshold are gzipped and
+ * tagged with the compressed flag, so compressed and plain values coexist.
+ * How much compression saves and costs is counted in a {@link MemcachedStats}.
+ * <p>
+ * Values the caller has already serialized, to decide where to store them,
+ * are written by {@link #getSerializedTranscoder()} as if this transcoder
+ * had serialized them.
+ */
+public class MemcachedSessionTranscoder extends SerializingTranscoder {
+
+	// a special type outside of those used by SerializingTranscoder
+	public static final int SESSION_INFO = 0x4000;
+
+	private static final int SPECIAL_MASK = 0xff00;
+	private static final int SERIALIZED = 1;
+	private static final int COMPRESSED = 2;
+	private static final SessionInfoCodec DEFAULT_CODEC = new CompactSessionInfoCodec();
+
+	private SessionInfoCodec _sessionInfoCodec;
+	
+	private final Transcoder<byte[]> _serializedTranscoder = new Transcoder<byte[]>() {
+		public boolean asyncDecode(CachedData d) {
+			return false;
+		}
+
+		public CachedData encode(byte[] data) {
+			return encodeSerialized(data);
+		}
+
+		public byte[] decode(CachedData d) {
+			throw new UnsupportedOperationException("Values are read back with the session transcoder");
+		}
+
+		public int getMaxSize() {
+			return MemcachedSessionTranscoder.this.getMaxSize();
+		}
+	};
+	private volatile MemcachedStats _stats = new MemcachedStats();
+
+	public MemcachedSessionTranscoder() {
+	}
+
+	public MemcachedSessionTranscoder(SessionInfoCodec sessionInfoCodec) {
+		_sessionInfoCodec = sessionInfoCodec;
+	}
+
+	public SessionInfoCodec getSessionInfoCodec() {
+		return _sessionInfoCodec;
+	}
+
+	/**
+	 * Sets the codec session infos are written with, or null to write them
+	 * with Java serialization.
+	 */
+	public void setSessionInfoCodec(SessionInfoCodec sessionInfoCodec) {
+		_sessionInfoCodec = sessionInfoCodec;
+	}
+
+	@Override
+	public CachedData encode(Object o) {
+		SessionInfoCodec codec = _sessionInfoCodec;
+		if (codec != null && o instanceof MemcachedSessionInfo) {
+			int flags = SESSION_INFO;
+			byte[] data = codec.encode((MemcachedSessionInfo) o);
+			if (data.length > compressionThreshold) {
+				// session infos carrying inline attributes can get large
+				byte[] compressed = compress(data);
+				if (compressed.length < data.length) {
+					data = compressed;
+					flags |= COMPRESSED;
+				}
+			}
+			return new CachedData(flags, data, CachedData.MAX_SIZE);
+		}
+		return super.encode(o);
+	}
+
+	/**
+	 * Returns a transcoder writing values serialized with Java serialization
+	 * as they are, so that they read back like values written by this
+	 * transcoder.
+	 */
+	public Transcoder<byte[]> getSerializedTranscoder() {
+		return _serializedTranscoder;
+	}
+
+	/**
+	 * Encodes a value serialized with Java serialization as {@link
+	 * #encode(Object)} encodes a serializable object, compressed the same way.
+	 */
+	public CachedData encodeSerialized(byte[] data) {
+		int flags = SERIALIZED;
+		if (data.length > compressionThreshold) {
+			byte[] compressed = compress(data);
+			if (compressed.length < data.length) {
+				data = compressed;
+				flags |= COMPRESSED;
+			}
+		}
+		return new CachedData(flags, data, getMaxSize());
+	}
+
+	@Override
+	public Object decode(CachedData d) {
+		if ((d.getFlags() & SPECIAL_MASK) == SESSION_INFO) {
+			SessionInfoCodec codec = _sessionInfoCodec;
+			byte[] data = (d.getFlags() & COMPRESSED) != 0 ? decompress(d.getData()) : d.getData();
+			return (codec != null ? codec : DEFAULT_CODEC).decode(data);
+		}
+		return super.decode(d);
+	}
+
+	@Override
+	protected byte[] compress(byte[] in) {
+		long start = System.nanoTime();
+		byte[] out = super.compress(in);
+		_stats.compressed(in.length, out.length, System.nanoTime() - start);
+		return out;
+	}
+
+	@Override
+	protected byte[] decompress(byte[] in) {
+		long start = System.nanoTime();
+		byte[] out = super.decompress(in);
+		_stats.decompressed(System.nanoTime() - start);
+		return out;
+	}
+
+	public MemcachedStats getStats() {
+		return _stats;
+	}
+
+	/**
+	 * Sets the stats compression is counted in, those of the session manager
+	 * using this transcoder once it is started.
+	 */
+	public void setStats(MemcachedStats stats) {
+		_stats = stats;
+	}
+}
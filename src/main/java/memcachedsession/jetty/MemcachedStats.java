@@ -0,0 +1,296 @@
+package memcachedsession.jetty;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+import org.mortbay.log.Log;
+
+/**
+ * Counts, latency histograms, hit/miss counts and payload bytes of memcached
+ * operations. Recording does not allocate or lock: every counter is spread
+ * over a few stripes picked by thread, each an atomic long, and latencies
+ * are kept in power of two histograms.
+ * <p>
+ * Synchronous operations are timed individually. Asynchronous ones are only
+ * counted, and the time spent waiting for a pipelined batch of them is
+ * recorded as one {@link Operation#BATCH}.
+ * <p>
+ * The compression done by a {@link MemcachedSessionTranscoder} writing to
+ * these stats is counted too.
+ */
+public class MemcachedStats implements MemcachedStatsMBean {
+
+	public enum Operation {
+		GET, GET_BULK, GETS, SET, ADD, CAS, DELETE, INCR, DECR, BATCH
+	}
+
+	private static final int STRIPES = 16;
+	// bucket b holds latencies below 2^b nanoseconds, the last one everything slower
+	private static final int BUCKETS = 40;
+	private static final int OPERATIONS = Operation.values().length;
+	
+	private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+	private final AtomicLongArray _counts = new AtomicLongArray(OPERATIONS * STRIPES);
+	private final AtomicLongArray _errors = new AtomicLongArray(OPERATIONS * STRIPES);
+	private final AtomicLongArray _hits = new AtomicLongArray(OPERATIONS * STRIPES);
+	private final AtomicLongArray _misses = new AtomicLongArray(OPERATIONS * STRIPES);
+	private final AtomicLongArray _nanos = new AtomicLongArray(OPERATIONS * STRIPES);
+	private final AtomicLongArray _histograms = new AtomicLongArray(OPERATIONS * STRIPES * BUCKETS);
+	private final AtomicLongArray _bytesRead = new AtomicLongArray(STRIPES);
+	private final AtomicLongArray _bytesWritten = new AtomicLongArray(STRIPES);
+	private final AtomicLongArray _compressions = new AtomicLongArray(STRIPES);
+	private final AtomicLongArray _compressionNanos = new AtomicLongArray(STRIPES);
+	private final AtomicLongArray _uncompressedBytes = new AtomicLongArray(STRIPES);
+	private final AtomicLongArray _compressedBytes = new AtomicLongArray(STRIPES);
+	private final AtomicLongArray _decompressions = new AtomicLongArray(STRIPES);
+	private final AtomicLongArray _decompressionNanos = new AtomicLongArray(STRIPES);
+	private final int _instance = INSTANCES.incrementAndGet();
+
+	private static int stripe() {
+		return (int) Thread.currentThread().getId() & (STRIPES - 1);
+	}
+
+	private static int index(Operation operation) {
+		return operation.ordinal() * STRIPES + stripe();
+	}
+
+	/**
+	 * Records an operation that took the given time.
+	 */
+	public void record(Operation operation, long nanos) {
+		int index = index(operation);
+		_counts.incrementAndGet(index);
+		_nanos.addAndGet(index, nanos);
+
+		int bucket = Math.min(64 - Long.numberOfLeadingZeros(Math.max(0, nanos)), BUCKETS - 1);
+		_histograms.incrementAndGet(index * BUCKETS + bucket);
+	}
+
+	/**
+	 * Records an operation whose latency is not known.
+	 */
+	public void count(Operation operation) {
+		_counts.incrementAndGet(index(operation));
+	}
+
+	public void error(Operation operation) {
+		_errors.incrementAndGet(index(operation));
+	}
+
+	public void hits(Operation operation, int hits, int misses) {
+		int index = index(operation);
+		if (hits > 0) {
+			_hits.addAndGet(index, hits);
+		}
+		if (misses > 0) {
+			_misses.addAndGet(index, misses);
+		}
+	}
+
+	public void bytesRead(int bytes) {
+		_bytesRead.addAndGet(stripe(), bytes);
+	}
+
+	public void bytesWritten(int bytes) {
+		_bytesWritten.addAndGet(stripe(), bytes);
+	}
+
+	/**
+	 * Records a value compressed from and to the given sizes.
+	 */
+	public void compressed(int uncompressedBytes, int compressedBytes, long nanos) {
+		int stripe = stripe();
+		_compressions.incrementAndGet(stripe);
+		_compressionNanos.addAndGet(stripe, nanos);
+		_uncompressedBytes.addAndGet(stripe, uncompressedBytes);
+		_compressedBytes.addAndGet(stripe, compressedBytes);
+	}
+
+	public void decompressed(long nanos) {
+		int stripe = stripe();
+		_decompressions.incrementAndGet(stripe);
+		_decompressionNanos.addAndGet(stripe, nanos);
+	}
+
+	private static long sum(AtomicLongArray array, int from, int length) {
+		long sum = 0;
+		for (int i = from; i < from + length; i++) {
+			sum += array.get(i);
+		}
+		return sum;
+	}
+
+	private static long sum(AtomicLongArray array, Operation operation) {
+		return sum(array, operation.ordinal() * STRIPES, STRIPES);
+	}
+
+	public long getCount(Operation operation) {
+		return sum(_counts, operation);
+	}
+
+	public long getErrors(Operation operation) {
+		return sum(_errors, operation);
+	}
+
+	public double getHitRatio(Operation operation) {
+		long hits = sum(_hits, operation);
+		long misses = sum(_misses, operation);
+		return hits + misses == 0 ? Double.NaN : (double) hits / (hits + misses);
+	}
+
+	public double getMeanMicros(Operation operation) {
+		long timed = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			timed += getBucket(operation, bucket);
+		}
+		return timed == 0 ? Double.NaN : sum(_nanos, operation) / 1000.0 / timed;
+	}
+
+	private long getBucket(Operation operation, int bucket) {
+		long count = 0;
+		int from = operation.ordinal() * STRIPES;
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			count += _histograms.get((from + stripe) * BUCKETS + bucket);
+		}
+		return count;
+	}
+
+	public long getPercentileMicros(Operation operation, double percentile) {
+		long[] buckets = new long[BUCKETS];
+		long total = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			buckets[bucket] = getBucket(operation, bucket);
+			total += buckets[bucket];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += buckets[bucket];
+			if (seen >= rank) {
+				return (1L << bucket) / 1000;
+			}
+		}
+		return (1L << (BUCKETS - 1)) / 1000;
+	}
+
+	public long getBytesRead() {
+		return sum(_bytesRead, 0, STRIPES);
+	}
+
+	public long getBytesWritten() {
+		return sum(_bytesWritten, 0, STRIPES);
+	}
+
+	public long getCompressions() {
+		return sum(_compressions, 0, STRIPES);
+	}
+
+	public long getCompressionNanos() {
+		return sum(_compressionNanos, 0, STRIPES);
+	}
+
+	public long getUncompressedBytes() {
+		return sum(_uncompressedBytes, 0, STRIPES);
+	}
+
+	public long getCompressedBytes() {
+		return sum(_compressedBytes, 0, STRIPES);
+	}
+
+	public double getCompressionRatio() {
+		long uncompressed = getUncompressedBytes();
+		return uncompressed == 0 ? 1 : (double) getCompressedBytes() / uncompressed;
+	}
+
+	public long getDecompressions() {
+		return sum(_decompressions, 0, STRIPES);
+	}
+
+	public long getDecompressionNanos() {
+		return sum(_decompressionNanos, 0, STRIPES);
+	}
+
+	public long getCount(String operation) {
+		return getCount(Operation.valueOf(operation));
+	}
+
+	public long getErrors(String operation) {
+		return getErrors(Operation.valueOf(operation));
+	}
+
+	public double getHitRatio(String operation) {
+		return getHitRatio(Operation.valueOf(operation));
+	}
+
+	public double getMeanMicros(String operation) {
+		return getMeanMicros(Operation.valueOf(operation));
+	}
+
+	public long getPercentileMicros(String operation, double percentile) {
+		return getPercentileMicros(Operation.valueOf(operation), percentile);
+	}
+
+	public String[] getSummary() {
+		Operation[] operations = Operation.values();
+		String[] summary = new String[operations.length + 1];
+		for (int i = 0; i < operations.length; i++) {
+			Operation operation = operations[i];
+			summary[i] = operation + ": count=" + getCount(operation) + " errors=" + getErrors(operation)
+					+ " hitRatio=" + getHitRatio(operation) + " meanUs=" + getMeanMicros(operation)
+					+ " p50Us=" + getPercentileMicros(operation, 50) + " p99Us=" + getPercentileMicros(operation, 99)
+					+ " p999Us=" + getPercentileMicros(operation, 99.9);
+		}
+		summary[operations.length] = "COMPRESSION: count=" + getCompressions() + " ratio=" + getCompressionRatio()
+				+ " nanos=" + getCompressionNanos() + " decompressions=" + getDecompressions()
+				+ " decompressionNanos=" + getDecompressionNanos();
+		return summary;
+	}
+
+	/**
+	 * Registers these stats with the platform MBean server under
+	 * {@code memcachedsession.jetty:type=MemcachedStats,<key>=<value>,instance=<n>}.
+	 * The instance number tells apart the managers of contexts with the same
+	 * path on different virtual hosts, or several id managers.
+	 * 
+	 * @return the name registered, or null if registration failed
+	 */
+	public ObjectName register(String key, String value) {
+		try {
+			ObjectName name = new ObjectName("memcachedsession.jetty:type=MemcachedStats," + key + "=" + ObjectName.quote(value) + ",instance=" + _instance);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			return name;
+		} catch (Exception e) {
+			// the stats are still kept, they are just not visible over JMX
+			Log.warn("Could not register memcached stats: " + e);
+			return null;
+		}
+	}
+
+	public static void unregister(ObjectName name) {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (Exception e) {
+			Log.ignore(e);
+		}
+	}
+
+	public void reset() {
+		for (AtomicLongArray array : new AtomicLongArray[] { _counts, _errors, _hits, _misses, _nanos, _histograms, _bytesRead, _bytesWritten,
+				_compressions, _compressionNanos, _uncompressedBytes, _compressedBytes, _decompressions, _decompressionNanos }) {
+			for (int i = 0; i < array.length(); i++) {
+				array.set(i, 0);
+			}
+		}
+	}
+}
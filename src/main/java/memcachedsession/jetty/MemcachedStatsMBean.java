@@ -0,0 +1,63 @@
+package memcachedsession.jetty;
+
+/**
+ * JMX view of {@link MemcachedStats}. Operations are named after
+ * {@link MemcachedStats.Operation}.
+ */
+public interface MemcachedStatsMBean {
+
+	/**
+	 * @return one line per operation with its count, errors, hit ratio,
+	 *         mean and percentile latencies, and one line on compression
+	 */
+	String[] getSummary();
+
+	long getBytesRead();
+
+	long getBytesWritten();
+
+	long getCompressions();
+
+	long getCompressionNanos();
+
+	/**
+	 * @return the number of bytes handed to the compressor
+	 */
+	long getUncompressedBytes();
+
+	/**
+	 * @return the number of bytes the compressor produced, including values
+	 *         that did not shrink and were therefore stored uncompressed
+	 */
+	long getCompressedBytes();
+
+	/**
+	 * @return compressed size over uncompressed size, or 1 if nothing has
+	 *         been compressed yet
+	 */
+	double getCompressionRatio();
+
+	long getDecompressions();
+
+	long getDecompressionNanos();
+
+	long getCount(String operation);
+
+	long getErrors(String operation);
+
+	/**
+	 * @return the fraction of keys read by the operation that were found,
+	 *         or NaN if it read none
+	 */
+	double getHitRatio(String operation);
+
+	double getMeanMicros(String operation);
+
+	/**
+	 * @return the upper bound of the latency histogram bucket holding the
+	 *         given percentile, in microseconds
+	 */
+	long getPercentileMicros(String operation, double percentile);
+
+	void reset();
+}
@@ -0,0 +1,18 @@
+package memcachedsession.jetty;
+
+/**
+ * Thrown when a memcached operation is not attempted because the circuit
+ * breaker is open, or failed while the breaker is in use.
+ */
+public class MemcachedUnavailableException extends RuntimeException {
+
+	private static final long serialVersionUID = -4129817063476213392L;
+
+	public MemcachedUnavailableException(String message) {
+		super(message);
+	}
+
+	public MemcachedUnavailableException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,12 @@
+package memcachedsession.jetty;
+
+/**
+ * Binary encoding of {@link MemcachedSessionInfo}, plugged into a
+ * {@link MemcachedSessionTranscoder} in place of Java serialization.
+ */
+public interface SessionInfoCodec {
+
+	byte[] encode(MemcachedSessionInfo sessionInfo);
+
+	MemcachedSessionInfo decode(byte[] data);
+}
@@ -0,0 +1,30 @@
+package memcachedsession.jetty;
+
+import junit.framework.TestCase;
+
+public class BloomFilterTest extends TestCase {
+
+	public void testNoFalseNegatives() throws Exception {
+		BloomFilter filter = new BloomFilter(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			filter.add("id" + i);
+		}
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(filter.mightContain("id" + i));
+		}
+	}
+
+	public void testFalsePositiveRate() throws Exception {
+		BloomFilter filter = new BloomFilter(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			filter.add("id" + i);
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 100000; i++) {
+			if (filter.mightContain("other" + i)) {
+				falsePositives++;
+			}
+		}
+		assertTrue("false positives: " + falsePositives, falsePositives < 2000);
+	}
+}
@@ -0,0 +1,100 @@
+package memcachedsession.jetty;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import net.spy.memcached.CachedData;
+
+public class CompactSessionInfoCodecTest extends TestCase {
+	
+	private MemcachedSessionInfo newSessionInfo() {
+		MemcachedSessionInfo sessionInfo = new MemcachedSessionInfo();
+		sessionInfo.setCreated(1262304000000L);
+		sessionInfo.setAccessed(1262304123456L);
+		sessionInfo.setMaxIdleMs(1800000);
+		sessionInfo.setIdChanged(true);
+		sessionInfo.getKeys().add("user");
+		sessionInfo.getKeys().add("cart");
+		sessionInfo.getKeys().add("\u00e9t\u00e9");
+		return sessionInfo;
+	}
+	
+	private void assertSessionInfoEquals(MemcachedSessionInfo expected, MemcachedSessionInfo actual) {
+		assertEquals(expected.getCreated(), actual.getCreated());
+		assertEquals(expected.getAccessed(), actual.getAccessed());
+		assertEquals(expected.getMaxIdleMs(), actual.getMaxIdleMs());
+		assertEquals(expected.isIdChanged(), actual.isIdChanged());
+		assertEquals(expected.getKeys(), actual.getKeys());
+		
+		Map<String, byte[]> attributes = actual.getAttributes();
+		assertEquals(expected.getAttributes().keySet(), attributes.keySet());
+		for (Map.Entry<String, byte[]> attribute : expected.getAttributes().entrySet()) {
+			assertTrue(attribute.getKey(), Arrays.equals(attribute.getValue(), attributes.get(attribute.getKey())));
+		}
+	}
+	
+	public void testRoundTrip() throws Exception {
+		CompactSessionInfoCodec codec = new CompactSessionInfoCodec();
+		MemcachedSessionInfo sessionInfo = newSessionInfo();
+		
+		assertSessionInfoEquals(sessionInfo, codec.decode(codec.encode(sessionInfo)));
+	}
+	
+	public void testInlineAttributesRoundTrip() throws Exception {
+		CompactSessionInfoCodec codec = new CompactSessionInfoCodec();
+		MemcachedSessionInfo sessionInfo = newSessionInfo();
+		sessionInfo.getAttributes().put("small", new byte[] { 1, 2, 3 });
+		sessionInfo.getAttributes().put("empty", new byte[0]);
+		sessionInfo.getAttributes().put("\u00e9t\u00e9", new byte[300]);
+		
+		byte[] data = codec.encode(sessionInfo);
+		
+		assertEquals(2, data[0]);
+		assertSessionInfoEquals(sessionInfo, codec.decode(data));
+	}
+	
+	public void testDecodesVersion1() throws Exception {
+		CompactSessionInfoCodec codec = new CompactSessionInfoCodec();
+		
+		// written before inline attributes: idChanged, created 1000,
+		// accessed 1500, maxIdleMs 60000 and the key "a"
+		byte[] data = { 1, 1, (byte) 0xe8, 0x07, (byte) 0xe8, 0x07, (byte) 0xc0, (byte) 0xa9, 0x07, 1, 1, 'a' };
+		MemcachedSessionInfo sessionInfo = codec.decode(data);
+		
+		assertTrue(sessionInfo.isIdChanged());
+		assertEquals(1000, sessionInfo.getCreated());
+		assertEquals(1500, sessionInfo.getAccessed());
+		assertEquals(60000, sessionInfo.getMaxIdleMs());
+		assertEquals(1, sessionInfo.getKeys().size());
+		assertTrue(sessionInfo.getKeys().contains("a"));
+		assertTrue(sessionInfo.getAttributes().isEmpty());
+		
+		// and version 1 is still what is written without inline attributes
+		assertTrue(Arrays.equals(data, codec.encode(sessionInfo)));
+	}
+	
+	public void testNegativeMaxIdle() throws Exception {
+		CompactSessionInfoCodec codec = new CompactSessionInfoCodec();
+		MemcachedSessionInfo sessionInfo = newSessionInfo();
+		sessionInfo.setMaxIdleMs(-1000);
+		sessionInfo.getKeys().clear();
+		
+		assertSessionInfoEquals(sessionInfo, codec.decode(codec.encode(sessionInfo)));
+	}
+	
+	public void testTranscoderReadsBothFormats() throws Exception {
+		MemcachedSessionInfo sessionInfo = newSessionInfo();
+		MemcachedSessionTranscoder serializing = new MemcachedSessionTranscoder();
+		MemcachedSessionTranscoder compact = new MemcachedSessionTranscoder(new CompactSessionInfoCodec());
+		
+		CachedData serialized = serializing.encode(sessionInfo);
+		CachedData encoded = compact.encode(sessionInfo);
+		
+		assertEquals(MemcachedSessionTranscoder.SESSION_INFO, encoded.getFlags());
+		assertTrue(encoded.getData().length < serialized.getData().length);
+		
+		assertSessionInfoEquals(sessionInfo, (MemcachedSessionInfo) serializing.decode(encoded));
+		assertSessionInfoEquals(sessionInfo, (MemcachedSessionInfo) compact.decode(serialized));
+	}
+}
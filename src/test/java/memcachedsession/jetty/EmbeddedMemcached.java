@@ -0,0 +1,585 @@
+package memcachedsession.jetty;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * In-process memcached server speaking the text protocol, so tests and
+ * benchmarks run without a memcached binary. It supports the commands the
+ * spymemcached client issues: get and gets of one or more keys, set, add,
+ * replace, cas, delete, incr, decr, touch, flush_all and version.
+ * <p>
+ * All connections are served by one selector thread, and the items are
+ * kept in a map guarded by this object. Like memcached, it can be given a
+ * memory limit, above which the least recently used items are evicted.
+ * <p>
+ * A latency can be injected into every reply, plus an exponentially
+ * distributed jitter that gives the replies a long tail. Delayed replies
+ * do not hold up other connections, and each connection still gets its
+ * replies in order.
+ */
+public class EmbeddedMemcached implements Runnable {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	// memcached treats expiration times above 30 days as absolute unix times
+	private static final long MAX_RELATIVE_EXPIRATION = 60 * 60 * 24 * 30;
+
+	private static class Item {
+		final int flags;
+		final byte[] data;
+		final long cas;
+		final long expiresAt;
+
+		Item(int flags, byte[] data, long cas, long expiresAt) {
+			this.flags = flags;
+			this.data = data;
+			this.cas = cas;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	// rough per item overhead of memcached, counted against the memory limit
+	private static final int ITEM_OVERHEAD = 50;
+
+	private static class Reply {
+		final long dueNanos;
+		final byte[] bytes;
+
+		Reply(long dueNanos, byte[] bytes) {
+			this.dueNanos = dueNanos;
+			this.bytes = bytes;
+		}
+	}
+
+	private static class Connection {
+		ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+		ByteBuffer out = ByteBuffer.allocate(16 * 1024);
+		final ArrayDeque<Reply> delayed = new ArrayDeque<Reply>();
+		boolean closing = false;
+	}
+
+	private static final Map<Integer, EmbeddedMemcached> _shared = new HashMap<Integer, EmbeddedMemcached>();
+
+	private final int _port;
+	private final Map<String, Item> _items = new LinkedHashMap<String, Item>(16, 0.75f, true);
+	private long _cas = 0;
+	private long _maxBytes = 0;
+	private long _bytes = 0;
+	private long _evictions = 0;
+
+	private volatile long _latencyNanos = 0;
+	private volatile long _jitterNanos = 0;
+	private final Random _random = new Random();
+	private final Set<SelectionKey> _delayedKeys = new HashSet<SelectionKey>();
+
+	private ServerSocketChannel _server;
+	private Selector _selector;
+	private Thread _thread;
+	private volatile boolean _running;
+
+	/**
+	 * @param port the port to listen on, 0 for any free port
+	 */
+	public EmbeddedMemcached(int port) {
+		_port = port;
+	}
+
+	/**
+	 * Returns the server on the given port shared by all tests of this JVM,
+	 * starting it on first use. Tests get it before any memcached client is
+	 * created, as a client that finds no server backs off before it retries,
+	 * and flush it instead of stopping it.
+	 */
+	public static synchronized EmbeddedMemcached getShared(int port) {
+		EmbeddedMemcached memcached = _shared.get(port);
+		if (memcached == null) {
+			memcached = new EmbeddedMemcached(port);
+			try {
+				memcached.start();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			_shared.put(port, memcached);
+		}
+		return memcached;
+	}
+
+	public void start() throws IOException {
+		_selector = Selector.open();
+		_server = ServerSocketChannel.open();
+		_server.socket().setReuseAddress(true);
+		_server.socket().bind(new InetSocketAddress("localhost", _port));
+		_server.configureBlocking(false);
+		_server.register(_selector, SelectionKey.OP_ACCEPT);
+
+		_running = true;
+		_thread = new Thread(this, "EmbeddedMemcached-" + getPort());
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	public void stop() throws InterruptedException {
+		_running = false;
+		_selector.wakeup();
+		_thread.join();
+	}
+
+	public int getPort() {
+		return _server.socket().getLocalPort();
+	}
+
+	/**
+	 * Returns the servers string for {@link MemcachedClientFactory#setServers(String)}.
+	 */
+	public String getServers() {
+		return "localhost:" + getPort();
+	}
+
+	public synchronized int size() {
+		return _items.size();
+	}
+
+	/**
+	 * Returns the memory counted against the limit: the keys, values and a
+	 * fixed overhead per item.
+	 */
+	public synchronized long getBytes() {
+		return _bytes;
+	}
+
+	public synchronized long getMaxBytes() {
+		return _maxBytes;
+	}
+
+	/**
+	 * Sets the memory limit, 0 (the default) for none.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		_maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized long getEvictions() {
+		return _evictions;
+	}
+
+	/**
+	 * Delays every reply by the given latency plus a random jitter, which is
+	 * exponentially distributed with the given mean. Replies are released
+	 * with millisecond precision.
+	 */
+	public void setLatency(long latencyMicros, long jitterMicros) {
+		_latencyNanos = latencyMicros * 1000;
+		_jitterNanos = jitterMicros * 1000;
+	}
+
+	public synchronized void flush() {
+		_items.clear();
+		_bytes = 0;
+	}
+
+	public void run() {
+		try {
+			while (_running) {
+				_selector.select(releaseDelayed());
+				Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							if (key.isReadable()) {
+								read(key);
+							}
+							if (key.isValid() && key.isWritable()) {
+								write(key);
+							}
+						}
+					} catch (IOException e) {
+						close(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			for (SelectionKey key : _selector.keys()) {
+				close(key);
+			}
+			try {
+				_selector.close();
+			} catch (IOException e) {
+				// stopping anyway
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = _server.accept();
+		if (channel != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.register(_selector, SelectionKey.OP_READ, new Connection());
+		}
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		if (!connection.in.hasRemaining()) {
+			connection.in = grow(connection.in, connection.in.capacity());
+		}
+		if (((SocketChannel) key.channel()).read(connection.in) < 0) {
+			close(key);
+			return;
+		}
+
+		connection.in.flip();
+		process(connection);
+		connection.in.compact();
+		if (!connection.delayed.isEmpty()) {
+			_delayedKeys.add(key);
+		}
+		write(key);
+	}
+
+	/**
+	 * Writes the delayed replies that are due.
+	 * 
+	 * @return the milliseconds until the next one is due, 0 if there is none
+	 */
+	private long releaseDelayed() {
+		long now = System.nanoTime();
+		long next = Long.MAX_VALUE;
+		for (Iterator<SelectionKey> keys = _delayedKeys.iterator(); keys.hasNext();) {
+			SelectionKey key = keys.next();
+			if (!key.isValid()) {
+				keys.remove();
+				continue;
+			}
+
+			Connection connection = (Connection) key.attachment();
+			while (!connection.delayed.isEmpty() && connection.delayed.peek().dueNanos <= now) {
+				append(connection, connection.delayed.poll().bytes);
+			}
+			try {
+				write(key);
+			} catch (IOException e) {
+				keys.remove();
+				close(key);
+				continue;
+			}
+
+			if (connection.delayed.isEmpty()) {
+				keys.remove();
+			} else {
+				next = Math.min(next, connection.delayed.peek().dueNanos);
+			}
+		}
+		return next == Long.MAX_VALUE ? 0 : Math.max(1, (next - now + 999999) / 1000000);
+	}
+
+	private void write(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		connection.out.flip();
+		((SocketChannel) key.channel()).write(connection.out);
+		connection.out.compact();
+
+		if (connection.out.position() > 0) {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} else if (connection.closing && connection.delayed.isEmpty()) {
+			close(key);
+		} else {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+
+	/**
+	 * Executes the complete commands in the input, leaving a partial one in
+	 * place until more of it has been read.
+	 */
+	private void process(Connection connection) {
+		ByteBuffer in = connection.in;
+		while (!connection.closing) {
+			int start = in.position();
+			int eol = -1;
+			for (int i = start; i < in.limit() - 1; i++) {
+				if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+					eol = i;
+					break;
+				}
+			}
+			if (eol < 0) {
+				return;
+			}
+
+			byte[] line = new byte[eol - start];
+			in.get(line);
+			String[] tokens = new String(line, ASCII).trim().split(" +");
+			String command = tokens[0];
+
+			byte[] data = null;
+			if (isStorage(command)) {
+				int length;
+				try {
+					length = Integer.parseInt(tokens[4]);
+				} catch (RuntimeException e) {
+					in.position(eol + 2);
+					reply(connection, "CLIENT_ERROR bad command line format");
+					continue;
+				}
+				if (in.limit() < eol + 2 + length + 2) {
+					// wait for the rest of the data block
+					in.position(start);
+					return;
+				}
+				data = new byte[length];
+				in.position(eol + 2);
+				in.get(data);
+				in.position(in.position() + 2);
+			} else {
+				in.position(eol + 2);
+			}
+
+			int replyStart = connection.out.position();
+			try {
+				execute(connection, tokens, data);
+			} catch (RuntimeException e) {
+				reply(connection, "CLIENT_ERROR " + e.getMessage());
+			}
+			delay(connection, replyStart);
+		}
+	}
+
+	/**
+	 * Moves the reply written from the given position of the output to the
+	 * delayed replies, if replies are delayed.
+	 */
+	private void delay(Connection connection, int replyStart) {
+		long latency = _latencyNanos;
+		long jitter = _jitterNanos;
+		if (latency == 0 && jitter == 0 && connection.delayed.isEmpty()) {
+			return;
+		}
+
+		byte[] bytes = new byte[connection.out.position() - replyStart];
+		connection.out.position(replyStart);
+		connection.out.get(bytes);
+		connection.out.position(replyStart);
+
+		long delay = latency;
+		if (jitter > 0) {
+			delay += (long) (-jitter * Math.log(1 - _random.nextDouble()));
+		}
+		long due = System.nanoTime() + delay;
+		if (!connection.delayed.isEmpty()) {
+			// a later reply may not overtake an earlier one
+			due = Math.max(due, connection.delayed.peekLast().dueNanos);
+		}
+		connection.delayed.add(new Reply(due, bytes));
+	}
+
+	private static boolean isStorage(String command) {
+		return command.equals("set") || command.equals("add") || command.equals("replace") || command.equals("cas");
+	}
+
+	private void execute(Connection connection, String[] tokens, byte[] data) {
+		String command = tokens[0];
+		boolean noreply = tokens[tokens.length - 1].equals("noreply");
+
+		String reply;
+		if (command.equals("get") || command.equals("gets")) {
+			get(connection, tokens, command.equals("gets"));
+			return;
+		} else if (isStorage(command)) {
+			long cas = command.equals("cas") ? Long.parseLong(tokens[5]) : 0;
+			reply = store(command, tokens[1], Integer.parseInt(tokens[2]), Long.parseLong(tokens[3]), data, cas);
+		} else if (command.equals("delete")) {
+			reply = delete(tokens[1]);
+		} else if (command.equals("incr") || command.equals("decr")) {
+			reply = incr(tokens[1], Long.parseLong(tokens[2]), command.equals("decr"));
+		} else if (command.equals("touch")) {
+			reply = touch(tokens[1], Long.parseLong(tokens[2]));
+		} else if (command.equals("flush_all")) {
+			flush();
+			reply = "OK";
+		} else if (command.equals("version")) {
+			reply = "VERSION embedded";
+		} else if (command.equals("quit")) {
+			connection.closing = true;
+			return;
+		} else {
+			reply = "ERROR";
+		}
+
+		if (!noreply) {
+			reply(connection, reply);
+		}
+	}
+
+	private void get(Connection connection, String[] tokens, boolean cas) {
+		for (int i = 1; i < tokens.length; i++) {
+			Item item = getItem(tokens[i]);
+			if (item != null) {
+				reply(connection, "VALUE " + tokens[i] + " " + item.flags + " " + item.data.length + (cas ? " " + item.cas : ""));
+				append(connection, item.data);
+				append(connection, CRLF);
+			}
+		}
+		reply(connection, "END");
+	}
+
+	private synchronized Item getItem(String key) {
+		Item item = _items.get(key);
+		if (item != null && item.expiresAt != 0 && item.expiresAt <= System.currentTimeMillis()) {
+			remove(key);
+			return null;
+		}
+		return item;
+	}
+
+	private synchronized Item remove(String key) {
+		Item item = _items.remove(key);
+		if (item != null) {
+			_bytes -= size(key, item);
+		}
+		return item;
+	}
+
+	private synchronized void put(String key, Item item) {
+		remove(key);
+		_items.put(key, item);
+		_bytes += size(key, item);
+		evict();
+	}
+
+	private static long size(String key, Item item) {
+		return key.length() + item.data.length + ITEM_OVERHEAD;
+	}
+
+	/**
+	 * Removes the least recently used items until the memory limit is met.
+	 */
+	private synchronized void evict() {
+		if (_maxBytes <= 0) {
+			return;
+		}
+		Iterator<Map.Entry<String, Item>> entries = _items.entrySet().iterator();
+		while (_bytes > _maxBytes && entries.hasNext()) {
+			Map.Entry<String, Item> eldest = entries.next();
+			_bytes -= size(eldest.getKey(), eldest.getValue());
+			entries.remove();
+			_evictions++;
+		}
+	}
+
+	private synchronized String store(String command, String key, int flags, long exptime, byte[] data, long cas) {
+		Item current = getItem(key);
+		if (command.equals("add") && current != null) {
+			return "NOT_STORED";
+		}
+		if (command.equals("replace") && current == null) {
+			return "NOT_STORED";
+		}
+		if (command.equals("cas")) {
+			if (current == null) {
+				return "NOT_FOUND";
+			}
+			if (current.cas != cas) {
+				return "EXISTS";
+			}
+		}
+		put(key, new Item(flags, data, ++_cas, expiresAt(exptime)));
+		return "STORED";
+	}
+
+	private synchronized String delete(String key) {
+		return getItem(key) != null && remove(key) != null ? "DELETED" : "NOT_FOUND";
+	}
+
+	private synchronized String touch(String key, long exptime) {
+		Item item = getItem(key);
+		if (item == null) {
+			return "NOT_FOUND";
+		}
+		_items.put(key, new Item(item.flags, item.data, item.cas, expiresAt(exptime)));
+		return "TOUCHED";
+	}
+
+	private synchronized String incr(String key, long delta, boolean decr) {
+		Item item = getItem(key);
+		if (item == null) {
+			return "NOT_FOUND";
+		}
+
+		long value;
+		try {
+			value = Long.parseLong(new String(item.data, ASCII).trim());
+		} catch (NumberFormatException e) {
+			return "CLIENT_ERROR cannot increment or decrement non-numeric value";
+		}
+		value = decr ? Math.max(0, value - delta) : value + delta;
+
+		put(key, new Item(item.flags, String.valueOf(value).getBytes(ASCII), ++_cas, item.expiresAt));
+		return String.valueOf(value);
+	}
+
+	private static long expiresAt(long exptime) {
+		if (exptime == 0) {
+			return 0;
+		}
+		if (exptime < 0) {
+			// already expired
+			return 1;
+		}
+		if (exptime > MAX_RELATIVE_EXPIRATION) {
+			return exptime * 1000;
+		}
+		return System.currentTimeMillis() + exptime * 1000;
+	}
+
+	private static void reply(Connection connection, String line) {
+		append(connection, line.getBytes(ASCII));
+		append(connection, CRLF);
+	}
+
+	private static void append(Connection connection, byte[] bytes) {
+		if (connection.out.remaining() < bytes.length) {
+			connection.out = grow(connection.out, bytes.length);
+		}
+		connection.out.put(bytes);
+	}
+}
@@ -0,0 +1,62 @@
+package memcachedsession.jetty;
+
+import junit.framework.TestCase;
+
+public class MemcachedCircuitBreakerTest extends TestCase {
+
+	public void testTripsAfterConsecutiveFailures() throws Exception {
+		MemcachedCircuitBreaker breaker = new MemcachedCircuitBreaker(3, 100, 60000);
+
+		breaker.failure();
+		breaker.failure();
+		breaker.success(0);
+		breaker.failure();
+		breaker.failure();
+		assertEquals(MemcachedCircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+
+		breaker.failure();
+		assertEquals(MemcachedCircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+		assertEquals(1, breaker.getTrips());
+	}
+
+	public void testSlowCallsCountAsFailures() throws Exception {
+		MemcachedCircuitBreaker breaker = new MemcachedCircuitBreaker(2, 100, 60000);
+
+		breaker.success(200 * 1000000L);
+		breaker.success(200 * 1000000L);
+		assertEquals(MemcachedCircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	public void testProbeAfterOpenTime() throws Exception {
+		MemcachedCircuitBreaker breaker = new MemcachedCircuitBreaker(1, 100, 0);
+
+		breaker.failure();
+		assertTrue(breaker.allowRequest());
+		assertEquals(MemcachedCircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+
+		breaker.failure();
+		assertEquals(MemcachedCircuitBreaker.State.OPEN, breaker.getState());
+
+		assertTrue(breaker.allowRequest());
+		breaker.success(0);
+		assertEquals(MemcachedCircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(2, breaker.getTrips());
+	}
+
+	public void testProbeExpires() throws Exception {
+		MemcachedCircuitBreaker breaker = new MemcachedCircuitBreaker(1, 10, 50);
+
+		breaker.failure();
+		Thread.sleep(60);
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+
+		// the probe never reports back
+		Thread.sleep(60);
+		assertTrue(breaker.allowRequest());
+		assertEquals(MemcachedCircuitBreaker.State.HALF_OPEN, breaker.getState());
+	}
+}
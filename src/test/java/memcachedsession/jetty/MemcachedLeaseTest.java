@@ -0,0 +1,58 @@
+package memcachedsession.jetty;
+
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+import net.spy.memcached.MemcachedClient;
+
+public class MemcachedLeaseTest extends TestCase {
+	
+	private static EmbeddedMemcached memcachedServer = EmbeddedMemcached.getShared(8888);
+	private MemcachedClient memcached;
+	private MemcachedLease first;
+	private MemcachedLease second;
+	
+	protected void setUp() throws Exception {
+		memcachedServer.flush();
+		memcached = new MemcachedClient(new InetSocketAddress("localhost", 8888));
+		InstrumentedMemcachedClient client = new InstrumentedMemcachedClient(memcached, new MemcachedStats(), 1000);
+		first = new MemcachedLease(client, "_JLEASE", "first");
+		second = new MemcachedLease(client, "_JLEASE", "second");
+	}
+	
+	protected void tearDown() throws Exception {
+		memcached.shutdown();
+	}
+	
+	public void testAcquireAndRenew() throws Exception {
+		assertTrue(first.acquire(60));
+		assertFalse(second.acquire(60));
+		
+		// the holder renews its lease, which the other owner still cannot take
+		assertTrue(first.acquire(60));
+		assertFalse(second.acquire(60));
+		assertEquals("first", memcached.get("_JLEASE"));
+	}
+	
+	public void testExpiry() throws Exception {
+		assertTrue(first.acquire(1));
+		assertFalse(second.acquire(1));
+		
+		Thread.sleep(2100);
+		
+		assertTrue(second.acquire(60));
+		assertFalse(first.acquire(60));
+	}
+	
+	public void testRelease() throws Exception {
+		assertTrue(first.acquire(60));
+		
+		// only the holder can give the lease up
+		second.release();
+		assertFalse(second.acquire(60));
+		
+		first.release();
+		assertNull(memcached.get("_JLEASE"));
+		assertTrue(second.acquire(60));
+	}
+}
@@ -0,0 +1,93 @@
+package memcachedsession.jetty;
+
+import java.net.InetSocketAddress;
+
+import javax.servlet.http.HttpSession;
+
+import junit.framework.TestCase;
+
+import memcachedsession.jetty.TwoSessionInstancesTest.TestHttpRequest;
+import net.spy.memcached.MemcachedClient;
+
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.ContextHandler;
+import org.mortbay.jetty.servlet.SessionHandler;
+
+public class MemcachedOutageTest extends TestCase {
+
+	private static final int PORT = 8890;
+
+	private EmbeddedMemcached memcachedServer;
+	private MemcachedSessionManager sessionManager;
+	private Server server;
+
+	protected void setUp() throws Exception {
+		memcachedServer = new EmbeddedMemcached(PORT);
+		memcachedServer.start();
+
+		MemcachedClientFactory clientFactory = new MemcachedClientFactory();
+		clientFactory.setServers(memcachedServer.getServers());
+		clientFactory.setOperationTimeoutMs(200);
+
+		server = new Server();
+		MemcachedSessionIdManager idManager = new MemcachedSessionIdManager(server);
+		idManager.setClientFactory(clientFactory);
+		idManager.setWorkerName("node0");
+		server.setSessionIdManager(idManager);
+
+		sessionManager = new MemcachedSessionManager();
+		sessionManager.setClientFactory(clientFactory);
+		sessionManager.setIdManager(idManager);
+		sessionManager.setCircuitBreaker(new MemcachedCircuitBreaker(1, 1000, 200));
+		sessionManager.setOperationTimeoutMs(200);
+		// reconcile() is called by the test
+		sessionManager.setAccessFlushPeriodMs(0);
+		sessionManager.setScavengePeriodMs(0);
+
+		SessionHandler handler = new SessionHandler(sessionManager);
+		sessionManager.setSessionHandler(handler);
+		ContextHandler context = new ContextHandler();
+		context.setHandler(handler);
+		server.setHandler(context);
+		server.start();
+	}
+
+	protected void tearDown() throws Exception {
+		server.stop();
+		memcachedServer.stop();
+	}
+
+	public void testSessionsCreatedDuringOutageAreReconciled() throws Exception {
+
+		memcachedServer.stop();
+
+		HttpSession session = sessionManager.newHttpSession(new TestHttpRequest());
+		session.setAttribute("foo", "bar");
+		sessionManager.complete(session);
+		assertTrue(sessionManager.isDegraded());
+
+		HttpSession reloaded = sessionManager.getHttpSession(session.getId());
+		assertNotNull(reloaded);
+		assertEquals("bar", reloaded.getAttribute("foo"));
+
+		memcachedServer.start();
+
+		// the client reconnects with a backoff
+		long deadline = System.currentTimeMillis() + 30000;
+		while (sessionManager.isDegraded() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(250);
+			sessionManager.reconcile();
+		}
+		assertFalse(sessionManager.isDegraded());
+
+		MemcachedClient memcached = new MemcachedClient(new InetSocketAddress("localhost", PORT));
+		try {
+			String clusterId = sessionManager.getIdManager().getClusterId(session.getId());
+			assertNotNull(memcached.get(clusterId));
+			assertEquals("bar", memcached.get(clusterId + "/foo"));
+			assertEquals(1, sessionManager.getSessions());
+		} finally {
+			memcached.shutdown();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package memcachedsession.jetty;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpSession;
+
+import junit.framework.TestCase;
+
+import memcachedsession.jetty.TwoSessionInstancesTest.TestHttpRequest;
+import net.spy.memcached.MemcachedClient;
+
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.ContextHandler;
+import org.mortbay.jetty.servlet.SessionHandler;
+
+public class MemcachedSessionMapTest extends TestCase {
+	
+	private static final int SHARDS = 4;
+	private static final int PAGE_SIZE = 3;
+	
+	private static EmbeddedMemcached memcachedServer = EmbeddedMemcached.getShared(8888);
+	private MemcachedSessionIdManager idManager;
+	private MemcachedSessionManager sessionManager;
+	private Server server;
+	private MemcachedClient memcached;
+	private Set<String> clusterIds = new HashSet<String>();
+	
+	protected void setUp() throws Exception {
+		memcachedServer.flush();
+		idManager = new MemcachedSessionIdManager();
+		idManager.setIndexShards(SHARDS);
+		server = new Server();
+		sessionManager = new MemcachedSessionManager();
+		sessionManager.setIndexShards(SHARDS);
+		sessionManager.setScavengePageSize(PAGE_SIZE);
+		SessionHandler handler = new SessionHandler(sessionManager);
+		sessionManager.setIdManager(idManager);
+		ContextHandler context = new ContextHandler();
+		sessionManager.setSessionHandler(handler);
+		server.setHandler(context);
+		context.setHandler(handler);
+		server.start();
+		
+		memcached = new MemcachedClient(new InetSocketAddress("localhost", 8888));
+		TestHttpRequest request = new TestHttpRequest();
+		for (int i = 0; i < 10; i++) {
+			HttpSession session = sessionManager.newHttpSession(request);
+			clusterIds.add(session.getId());
+		}
+	}
+	
+	protected void tearDown() throws Exception {
+		server.stop();
+		idManager.stop();
+		memcached.shutdown();
+	}
+	
+	public void testPagingAcrossShards() throws Exception {
+		// every shard is loaded in pages of at most the page size
+		MemcachedSessionIndex index = new MemcachedSessionIndex(new InstrumentedMemcachedClient(memcached, new MemcachedStats(), 1000), SHARDS);
+		int pages = 0;
+		int shardsUsed = 0;
+		for (int shard = 0; shard < SHARDS; shard++) {
+			int size = index.getClusterIds(shard).size();
+			pages += (size + PAGE_SIZE - 1) / PAGE_SIZE;
+			shardsUsed += size > 0 ? 1 : 0;
+		}
+		assertTrue(shardsUsed > 1);
+		
+		long bulkReads = sessionManager.getStats().getCount(MemcachedStats.Operation.GET_BULK);
+		Set<String> iterated = new HashSet<String>();
+		for (Map.Entry<String, MemcachedSessionManager.Session> entry : sessionManager.getSessionMap().entrySet()) {
+			assertEquals(entry.getKey(), entry.getValue().getClusterId());
+			assertTrue(iterated.add(entry.getKey()));
+		}
+		
+		assertEquals(clusterIds, iterated);
+		assertEquals(bulkReads + pages, sessionManager.getStats().getCount(MemcachedStats.Operation.GET_BULK));
+	}
+	
+	public void testSizeFromCounter() throws Exception {
+		Map<String, MemcachedSessionManager.Session> sessions = sessionManager.getSessionMap();
+		assertEquals(10, sessions.size());
+		
+		// the size is the counter, not what iterating the shards would find
+		memcached.set(MemcachedSessionManager._JSESSIONS + "/count", 0, "42").get();
+		assertEquals(42, sessions.size());
+		assertFalse(sessions.isEmpty());
+	}
+	
+	public void testSkipsMissingSessionInfo() throws Exception {
+		String removed = clusterIds.iterator().next();
+		memcached.delete(removed).get();
+		
+		Map<String, MemcachedSessionManager.Session> sessions = sessionManager.getSessionMap();
+		Set<String> iterated = new HashSet<String>(sessions.keySet());
+		
+		clusterIds.remove(removed);
+		assertEquals(clusterIds, iterated);
+		assertNull(sessions.get(removed));
+		assertFalse(sessions.containsKey(removed));
+	}
+}
@@ -0,0 +1,58 @@
+package memcachedsession.jetty;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+import net.spy.memcached.CachedData;
+
+public class MemcachedSessionTranscoderTest extends TestCase {
+	
+	private static String newLargeValue() {
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			large.append("search result ").append(i % 10).append(' ');
+		}
+		return large.toString();
+	}
+	
+	public void testCompressionAboveThreshold() throws Exception {
+		MemcachedSessionTranscoder transcoder = new MemcachedSessionTranscoder();
+		transcoder.setCompressionThreshold(1024);
+		String large = newLargeValue();
+		
+		CachedData small = transcoder.encode("small");
+		CachedData compressed = transcoder.encode(large);
+		
+		assertEquals(0, small.getFlags());
+		assertTrue(compressed.getData().length < large.length());
+		assertEquals(large, transcoder.decode(compressed));
+		assertEquals("small", transcoder.decode(small));
+		
+		MemcachedStats stats = transcoder.getStats();
+		assertEquals(1, stats.getCompressions());
+		assertEquals(1, stats.getDecompressions());
+		assertTrue(stats.getCompressionRatio() < 0.5);
+	}
+	
+	public void testCompressionStatsPublished() throws Exception {
+		MemcachedStats stats = new MemcachedStats();
+		MemcachedSessionTranscoder transcoder = new MemcachedSessionTranscoder();
+		transcoder.setCompressionThreshold(1024);
+		transcoder.setStats(stats);
+		transcoder.encode(newLargeValue());
+		
+		ObjectName name = stats.register("context", "/compression");
+		try {
+			assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Compressions"));
+			assertTrue((Double) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "CompressionRatio") < 0.5);
+		} finally {
+			MemcachedStats.unregister(name);
+		}
+		
+		stats.reset();
+		assertEquals(0, stats.getCompressions());
+		assertEquals(1.0, stats.getCompressionRatio(), 0);
+	}
+}
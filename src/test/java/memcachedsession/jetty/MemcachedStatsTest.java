@@ -0,0 +1,63 @@
+package memcachedsession.jetty;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import memcachedsession.jetty.MemcachedStats.Operation;
+
+public class MemcachedStatsTest extends TestCase {
+
+	public void testPercentiles() throws Exception {
+		MemcachedStats stats = new MemcachedStats();
+		for (int i = 0; i < 99; i++) {
+			stats.record(Operation.GET, 1000);
+		}
+		stats.record(Operation.GET, 10000000);
+
+		assertEquals(100, stats.getCount(Operation.GET));
+		assertEquals(1, stats.getPercentileMicros(Operation.GET, 50));
+		assertEquals(1, stats.getPercentileMicros(Operation.GET, 99));
+		assertTrue(stats.getPercentileMicros(Operation.GET, 99.9) >= 10000);
+		assertEquals(0, stats.getPercentileMicros(Operation.SET, 99));
+	}
+
+	public void testHitRatio() throws Exception {
+		MemcachedStats stats = new MemcachedStats();
+		assertTrue(Double.isNaN(stats.getHitRatio(Operation.GET_BULK)));
+
+		stats.hits(Operation.GET_BULK, 3, 1);
+		assertEquals(0.75, stats.getHitRatio("GET_BULK"), 0.001);
+
+		stats.reset();
+		assertTrue(Double.isNaN(stats.getHitRatio(Operation.GET_BULK)));
+	}
+
+	public void testRegister() throws Exception {
+		MemcachedStats stats = new MemcachedStats();
+		stats.bytesWritten(100);
+
+		ObjectName name = stats.register("context", "/test");
+		try {
+			assertEquals(100L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "BytesWritten"));
+		} finally {
+			MemcachedStats.unregister(name);
+		}
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+
+	public void testRegisterSameContextTwice() throws Exception {
+		ObjectName first = new MemcachedStats().register("context", "/test");
+		ObjectName second = new MemcachedStats().register("context", "/test");
+		try {
+			assertNotNull(first);
+			assertNotNull(second);
+			assertFalse(first.equals(second));
+		} finally {
+			MemcachedStats.unregister(first);
+			MemcachedStats.unregister(second);
+		}
+	}
+}
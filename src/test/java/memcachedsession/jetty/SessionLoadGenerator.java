@@ -0,0 +1,200 @@
+package memcachedsession.jetty;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+import org.mortbay.jetty.servlet.SessionHandler;
+
+/**
+ * Drives a Jetty using a {@link MemcachedSessionManager} with HTTP requests
+ * at a fixed rate and reports the request latency percentiles and the
+ * memcached stats. Memcached is an {@link EmbeddedMemcached}, whose
+ * injected latency and jitter let the tail latency of a production
+ * memcached be reproduced. Run it with
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=memcachedsession.jetty.SessionLoadGenerator -Dexec.args="threads sessionsPerThread seconds latencyMicros jitterMicros payloadBytes requestsPerSecond"
+ * </pre>
+ *
+ * The load is open-loop: requests are scheduled at the given rate whether
+ * or not earlier ones have completed, and sent over up to the given number
+ * of connections. Latency is measured from the time a request was meant to
+ * be sent, so a stall also counts against the requests queued behind it
+ * instead of only delaying them unseen.
+ * <p>
+ * The requests go to the sessions in turn. A request reads and increments
+ * a counter attribute; the first request of a session also stores the
+ * payload attribute.
+ */
+public class SessionLoadGenerator {
+
+	@SuppressWarnings("serial")
+	static class CounterServlet extends HttpServlet {
+
+		private final int _payloadBytes;
+
+		CounterServlet(int payloadBytes) {
+			_payloadBytes = payloadBytes;
+		}
+
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			HttpSession session = request.getSession(true);
+			Integer count = (Integer) session.getAttribute("count");
+			if (count == null) {
+				count = 0;
+				session.setAttribute("payload", new byte[_payloadBytes]);
+			}
+			session.setAttribute("count", count + 1);
+
+			response.setContentType("text/plain");
+			response.getWriter().print(count + 1);
+		}
+	}
+
+	static class Request implements Runnable {
+
+		private final URL _url;
+		private final AtomicReferenceArray<String> _cookies;
+		private final int _session;
+		private final long[] _latencies;
+		private final int _index;
+		private final long _intendedNanos;
+
+		Request(URL url, AtomicReferenceArray<String> cookies, long[] latencies, int index, long intendedNanos) {
+			_url = url;
+			_cookies = cookies;
+			_session = index % cookies.length();
+			_latencies = latencies;
+			_index = index;
+			_intendedNanos = intendedNanos;
+		}
+
+		public void run() {
+			byte[] buffer = new byte[1024];
+			try {
+				HttpURLConnection connection = (HttpURLConnection) _url.openConnection();
+				String cookie = _cookies.get(_session);
+				if (cookie != null) {
+					connection.setRequestProperty("Cookie", cookie);
+				}
+				InputStream in = connection.getInputStream();
+				while (in.read(buffer) >= 0) {
+					// drain so the connection is kept alive
+				}
+				in.close();
+
+				cookie = connection.getHeaderField("Set-Cookie");
+				if (cookie != null) {
+					int semicolon = cookie.indexOf(';');
+					_cookies.set(_session, semicolon < 0 ? cookie : cookie.substring(0, semicolon));
+				}
+			} catch (IOException e) {
+				_latencies[_index] = -1;
+				return;
+			}
+			_latencies[_index] = System.nanoTime() - _intendedNanos;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+		long latencyMicros = args.length > 3 ? Long.parseLong(args[3]) : 0;
+		long jitterMicros = args.length > 4 ? Long.parseLong(args[4]) : 0;
+		int payloadBytes = args.length > 5 ? Integer.parseInt(args[5]) : 1024;
+		int rate = args.length > 6 ? Integer.parseInt(args[6]) : 1000;
+
+		// keep a connection per client thread alive
+		System.setProperty("http.maxConnections", String.valueOf(threads));
+
+		EmbeddedMemcached memcached = new EmbeddedMemcached(0);
+		memcached.setLatency(latencyMicros, jitterMicros);
+		memcached.start();
+
+		MemcachedClientFactory clientFactory = new MemcachedClientFactory();
+		clientFactory.setServers(memcached.getServers());
+
+		Server server = new Server();
+		SelectChannelConnector connector = new SelectChannelConnector();
+		connector.setPort(0);
+		server.addConnector(connector);
+
+		MemcachedSessionIdManager idManager = new MemcachedSessionIdManager(server);
+		idManager.setClientFactory(clientFactory);
+		server.setSessionIdManager(idManager);
+		MemcachedSessionManager sessionManager = new MemcachedSessionManager();
+		sessionManager.setClientFactory(clientFactory);
+		sessionManager.setIdManager(idManager);
+
+		Context context = new Context(server, "/", new SessionHandler(sessionManager), null, null, null);
+		context.addServlet(new ServletHolder(new CounterServlet(payloadBytes)), "/*");
+		server.start();
+
+		System.out.println(threads + " threads, " + sessions + " sessions each, " + rate + " requests/s for " + seconds
+				+ "s, memcached latency " + latencyMicros + "us + " + jitterMicros + "us mean jitter, " + payloadBytes
+				+ " byte payload");
+
+		URL url = new URL("http://localhost:" + connector.getLocalPort() + "/");
+		AtomicReferenceArray<String> cookies = new AtomicReferenceArray<String>(threads * sessions);
+		long[] latencies = new long[(int) ((long) rate * seconds)];
+		long periodNanos = 1000000000L / rate;
+		ExecutorService clients = Executors.newFixedThreadPool(threads);
+		long startNanos = System.nanoTime();
+		for (int i = 0; i < latencies.length; i++) {
+			long intendedNanos = startNanos + i * periodNanos;
+			long delay = intendedNanos - System.nanoTime();
+			if (delay > 0) {
+				LockSupport.parkNanos(delay);
+			}
+			clients.execute(new Request(url, cookies, latencies, i, intendedNanos));
+		}
+		clients.shutdown();
+		clients.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		double elapsed = (System.nanoTime() - startNanos) / 1e9;
+
+		Arrays.sort(latencies);
+		int errors = 0;
+		while (errors < latencies.length && latencies[errors] < 0) {
+			errors++;
+		}
+		long[] completed = Arrays.copyOfRange(latencies, errors, latencies.length);
+		int requests = completed.length;
+
+		System.out.printf("%d requests, %d errors, %.1f requests/s achieved%n", requests, errors, requests / elapsed);
+		if (requests > 0) {
+			System.out.printf("latency ms: p50 %.2f p90 %.2f p99 %.2f p99.9 %.2f max %.2f%n", percentile(completed, 50),
+					percentile(completed, 90), percentile(completed, 99), percentile(completed, 99.9), completed[requests - 1] / 1e6);
+		}
+		for (String line : sessionManager.getStats().getSummary()) {
+			System.out.println(line);
+		}
+		System.out.println("memcached items " + memcached.size() + ", evictions " + memcached.getEvictions());
+
+		server.stop();
+		memcached.stop();
+	}
+
+	private static double percentile(long[] sorted, double percentile) {
+		int index = (int) Math.ceil(sorted.length * percentile / 100) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+	}
+}
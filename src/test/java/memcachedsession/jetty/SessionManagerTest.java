@@ -20,6 +20,7 @@ package memcachedsession.jetty;
 
 import java.io.Serializable;
 import java.net.InetSocketAddress;
+import java.util.Collections;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -32,6 +33,7 @@ import junit.framework.TestCase;
 import memcachedsession.jetty.MemcachedSessionIdManager;
 import memcachedsession.jetty.MemcachedSessionInfo;
 import memcachedsession.jetty.MemcachedSessionManager;
+import net.spy.memcached.CASValue;
 import net.spy.memcached.MemcachedClient;
 
 import org.mortbay.jetty.Server;
@@ -43,14 +45,14 @@ import org.mortbay.jetty.servlet.SessionHandler;
  */
 @SuppressWarnings("serial")
 public class SessionManagerTest extends TestCase implements Serializable {
+	static EmbeddedMemcached memcachedServer = EmbeddedMemcached.getShared(8888);
 	transient TestSessionIdManager idManager = new TestSessionIdManager();
 	transient MemcachedSessionManager sessionManager;
 	transient SessionHandler handler;
 	transient Server server = new Server();
-	transient Process process;
 	
 	protected void setUp() throws Exception {
-		process = Runtime.getRuntime().exec("memcached -m 1024 -p 8888");
+		memcachedServer.flush();
 		sessionManager = new MemcachedSessionManager();
 		handler = new SessionHandler(sessionManager);
 		sessionManager.setIdManager(idManager);
@@ -63,7 +65,6 @@ public class SessionManagerTest extends TestCase implements Serializable {
 
 	protected void tearDown() throws Exception {
 		server.stop();
-		process.destroy();
 	}
 
 	public void testSetAttributeToNullIsTheSameAsRemoveAttribute() throws Exception {
@@ -130,6 +131,110 @@ public class SessionManagerTest extends TestCase implements Serializable {
 		assertTrue(sessionInfo.getCreated() <= after);
 	}
 	
+	public void testWriteBehind() throws Exception {
+		sessionManager.setWriteBehind(true);
+		HttpSession session = sessionManager.newHttpSession(null);
+		
+		MemcachedClient memcached = new MemcachedClient(new InetSocketAddress("localhost", 8888));
+		
+		session.setAttribute("foo", "bar");
+		assertEquals("bar", session.getAttribute("foo"));
+		assertTrue(session.getAttributeNames().hasMoreElements());
+		assertNull(memcached.get(session.getId() + "/foo"));
+		
+		sessionManager.complete(session);
+		
+		assertEquals("bar", memcached.get(session.getId() + "/foo"));
+		assertTrue(((MemcachedSessionInfo) memcached.get(session.getId())).getKeys().contains("foo"));
+	}
+	
+	public void testSingleBlobStorage() throws Exception {
+		sessionManager.setStorage(MemcachedSessionManager.Storage.SINGLE_BLOB);
+		HttpSession session = sessionManager.newHttpSession(null);
+
+		MemcachedClient memcached = new MemcachedClient(new InetSocketAddress("localhost", 8888));
+
+		session.setAttribute("foo", "bar");
+		sessionManager.complete(session);
+
+		MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) memcached.get(session.getId());
+		assertTrue(sessionInfo.getAttributes().containsKey("foo"));
+		assertTrue(sessionInfo.getKeys().isEmpty());
+		assertNull(memcached.get(session.getId() + "/foo"));
+		assertEquals("bar", sessionManager.getHttpSession(session.getId()).getAttribute("foo"));
+	}
+
+	public void testHybridStorage() throws Exception {
+		sessionManager.setStorage(MemcachedSessionManager.Storage.HYBRID);
+		sessionManager.setInlineThreshold(100);
+		HttpSession session = sessionManager.newHttpSession(null);
+
+		MemcachedClient memcached = new MemcachedClient(new InetSocketAddress("localhost", 8888));
+
+		session.setAttribute("small", "bar");
+		session.setAttribute("large", new byte[1000]);
+		sessionManager.complete(session);
+
+		MemcachedSessionInfo sessionInfo = (MemcachedSessionInfo) memcached.get(session.getId());
+		assertTrue(sessionInfo.getAttributes().containsKey("small"));
+		assertTrue(sessionInfo.getKeys().contains("large"));
+		assertEquals(1000, ((byte[]) memcached.get(session.getId() + "/large")).length);
+		
+		HttpSession reloaded = sessionManager.getHttpSession(session.getId());
+		assertEquals("bar", reloaded.getAttribute("small"));
+		assertEquals(1000, ((byte[]) reloaded.getAttribute("large")).length);
+	}
+
+	public void testNearCache() throws Exception {
+		sessionManager.setNearCacheSize(100);
+		sessionManager.setNearCacheStalenessMs(60000);
+		HttpSession session = sessionManager.newHttpSession(null);
+		session.setAttribute("foo", "bar");
+		long misses = sessionManager.getNearCache().getMisses();
+		
+		HttpSession session1 = sessionManager.getHttpSession(session.getId());
+		assertEquals(misses + 1, sessionManager.getNearCache().getMisses());
+		assertTrue(session1.getAttributeNames().hasMoreElements());
+		assertEquals(session.getMaxInactiveInterval(), session1.getMaxInactiveInterval());
+		assertEquals(misses + 1, sessionManager.getNearCache().getMisses());
+		assertTrue(sessionManager.getNearCache().getHits() > 0);
+		
+		session1.removeAttribute("foo");
+		assertFalse(sessionManager.getHttpSession(session.getId()).getAttributeNames().hasMoreElements());
+	}
+
+	public void testTouchSkipsChangedSessions() throws Exception {
+		sessionManager.setTtlExpiry(true);
+		HttpSession session = sessionManager.newHttpSession(null);
+		session.setAttribute("foo", "bar");
+
+		MemcachedClient memcached = new MemcachedClient(new InetSocketAddress("localhost", 8888));
+
+		// a request adds an attribute after the flusher has read the info
+		CASValue<Object> read = memcached.gets(session.getId());
+		session.setAttribute("baz", "qux");
+		
+		assertEquals(Collections.singleton(session.getId()), sessionManager.touch(Collections.singletonMap(session.getId(), read)));
+		assertTrue(((MemcachedSessionInfo) memcached.get(session.getId())).getKeys().contains("baz"));
+		
+		read = memcached.gets(session.getId());
+		assertTrue(sessionManager.touch(Collections.singletonMap(session.getId(), read)).isEmpty());
+		assertTrue(((MemcachedSessionInfo) memcached.get(session.getId())).getKeys().contains("baz"));
+		assertEquals("qux", memcached.get(session.getId() + "/baz"));
+	}
+
+	public void testRemoveSessions() throws Exception {
+		HttpSession session = sessionManager.newHttpSession(null);
+		session.setAttribute("foo", "bar");
+
+		MemcachedClient memcached = new MemcachedClient(new InetSocketAddress("localhost", 8888));
+
+		assertTrue(sessionManager.removeSessions(Collections.singleton(session.getId())).isEmpty());
+		assertNull(memcached.get(session.getId()));
+		assertNull(memcached.get(session.getId() + "/foo"));
+		assertNull(sessionManager.getHttpSession(session.getId()));
+	}
+
 	public void testWorker() throws Exception {
 		try {
 			idManager.setWorkerName("node0");
@@ -158,6 +263,32 @@ public class SessionManagerTest extends TestCase implements Serializable {
 		}
 	}
 
+	public void testAffinity() throws Exception {
+		try {
+			idManager.setWorkerName("node0");
+			sessionManager.setAffinity(true);
+			HttpSession session = sessionManager.newHttpSession(null);
+			session.setAttribute("foo", "bar");
+			String nodeId = sessionManager.getNodeId(session);
+
+			MemcachedClient memcached = new MemcachedClient(new InetSocketAddress("localhost", 8888));
+			memcached.set(session.getId() + "/foo", 0, "baz").get();
+
+			// the owner serves its own copy
+			assertEquals("bar", sessionManager.getHttpSession(nodeId).getAttribute("foo"));
+
+			// any other node reads memcached and the owner gives up its copy
+			assertEquals("baz", sessionManager.getHttpSession(session.getId() + ".node1").getAttribute("foo"));
+			assertEquals("baz", sessionManager.getHttpSession(nodeId).getAttribute("foo"));
+
+			// nor does the owner serve a copy of a session removed elsewhere
+			memcached.delete(session.getId()).get();
+			assertNull(sessionManager.getHttpSession(nodeId));
+		} finally {
+			idManager.setWorkerName(null);
+		}
+	}
+
 	class TestSessionIdManager extends MemcachedSessionIdManager {
 
 		public boolean idInUse(String id) {
@@ -1,6 +1,8 @@
 package memcachedsession.jetty;
 
 import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.servlet.http.HttpSession;
 
@@ -17,17 +19,17 @@ import org.mortbay.jetty.servlet.SessionHandler;
 
 public class SessionTimeoutTest extends TestCase {
 	
+	private static EmbeddedMemcached memcachedServer = EmbeddedMemcached.getShared(8888);
 	private MemcachedSessionIdManager idManager;
 	private MemcachedSessionManager sessionManager;
 	private SessionHandler handler;
 	private Server server;
-	private Process process;
 	private MemcachedClient memcached;
 	private TestHttpRequest request;
 	
 	
 	protected void setUp() throws Exception {
-		process = Runtime.getRuntime().exec("memcached -m 1024 -p 8888");
+		memcachedServer.flush();
 		idManager = new MemcachedSessionIdManager();
 		server = new Server();
 		sessionManager = new MemcachedSessionManager();
@@ -52,7 +54,6 @@ public class SessionTimeoutTest extends TestCase {
 	
 	protected void tearDown() throws Exception {
 		server.stop();
-		process.destroy();
 	}
 	
 	public void dstestWaitingForInvalidation() throws Exception {
@@ -69,6 +70,77 @@ public class SessionTimeoutTest extends TestCase {
 		assertNull(memcached.get(session.getId() + "/foo"));
 	}
 	
+	public void testTtlExpiry() throws Exception {
+		
+		sessionManager.setScavengePeriodMs(0);
+		sessionManager.setTtlExpiry(true);
+		
+		HttpSession session = sessionManager.newHttpSession(request);
+		session.setAttribute("foo", 1000);
+		
+		assertNotNull(memcached.get(session.getId()));
+		assertEquals(1000, memcached.get(session.getId() + "/foo"));
+		
+		Thread.sleep(6000);
+		
+		assertNull(memcached.get(session.getId()));
+		assertNull(memcached.get(session.getId() + "/foo"));
+	}
+	
+	public void testExpiryWheel() throws Exception {
+		
+		sessionManager.setAccessFlushPeriodMs(0);
+		sessionManager.setExpirySlotMs(1000);
+		sessionManager.setExpiryWheel(true);
+		
+		HttpSession session = sessionManager.newHttpSession(request);
+		session.setAttribute("foo", 1000);
+		
+		Thread.sleep(6000);
+		
+		assertNull(memcached.get(session.getId()));
+		assertNull(memcached.get(session.getId() + "/foo"));
+	}
+	
+	public void testExpiryWheelBootstrap() throws Exception {
+		
+		sessionManager.setScavengePeriodMs(0);
+		sessionManager.setAccessFlushPeriodMs(0);
+		
+		HttpSession session = sessionManager.newHttpSession(request);
+		session.setAttribute("foo", 1000);
+		
+		// the session exists before the wheel, so it is only found by the first full pass
+		sessionManager.setExpirySlotMs(1000);
+		sessionManager.setExpiryWheel(true);
+		sessionManager.run();
+		assertNotNull(memcached.get(session.getId()));
+		
+		Thread.sleep(5000);
+		sessionManager.run();
+		
+		assertNull(memcached.get(session.getId()));
+		assertNull(memcached.get(session.getId() + "/foo"));
+	}
+	
+	public void testExpiryWheelShards() throws Exception {
+		
+		MemcachedExpiryWheel wheel = new MemcachedExpiryWheel(new InstrumentedMemcachedClient(memcached, new MemcachedStats(), 1000), 1000, 4);
+		Map<String, Long> expiries = new HashMap<String, Long>();
+		for (int i = 0; i < 100; i++) {
+			expiries.put("session" + i, 5500L);
+		}
+		
+		assertTrue(wheel.schedule(expiries).isEmpty());
+		assertEquals(expiries.keySet(), wheel.getBucket(5));
+		for (int shard = 0; shard < 4; shard++) {
+			assertNotNull(memcached.get(wheel.getBucketKey(5, shard)));
+		}
+		
+		wheel.removeBucket(5);
+		assertTrue(wheel.getBucket(5).isEmpty());
+	}
+	
 	public void testRefreshingAccessed() throws Exception {
 		
 		HttpSession session = sessionManager.newHttpSession(request);
@@ -2,6 +2,7 @@ package memcachedsession.jetty;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.security.Principal;
@@ -14,6 +15,10 @@ import javax.servlet.ServletInputStream;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
 
 import junit.framework.TestCase;
 
@@ -27,11 +32,11 @@ import org.mortbay.jetty.servlet.SessionHandler;
 
 public class TwoSessionInstancesTest extends TestCase {
 
+	private static EmbeddedMemcached memcachedServer = EmbeddedMemcached.getShared(8888);
 	private MemcachedSessionIdManager idManager;
 	private MemcachedSessionManager sessionManager;
 	private SessionHandler handler;
 	private Server server;
-	private Process process;
 	private MemcachedClient memcached;
 	private TestHttpRequest request;
 	private HttpSession session1;
@@ -40,7 +45,7 @@ public class TwoSessionInstancesTest extends TestCase {
 	protected void setUp() throws Exception {
 		idManager = new MemcachedSessionIdManager();
 		server = new Server();
-		process = Runtime.getRuntime().exec("memcached -m 1024 -p 8888");
+		memcachedServer.flush();
 		sessionManager = new MemcachedSessionManager();
 		handler = new SessionHandler(sessionManager);
 		idManager.setWorkerName("node0");
@@ -61,7 +66,7 @@ public class TwoSessionInstancesTest extends TestCase {
 
 	protected void tearDown() throws Exception {
 		server.stop();
-		process.destroy();
+		idManager.stop();
 	}
 	
 	public void testPresenceOfTwoSessions() {
@@ -75,6 +80,45 @@ public class TwoSessionInstancesTest extends TestCase {
 		assertEquals(2, sessionManager.getSessions());
 	}
 	
+	public void testSessionCountAfterEviction() throws Exception {
+		
+		memcached.delete(MemcachedSessionManager._JSESSIONS + "/count").get();
+		sessionManager.newHttpSession(request);
+		
+		assertEquals(3, sessionManager.getSessions());
+	}
+	
+	public void testIdInUse() throws Exception {
+		
+		String clusterId = idManager.getClusterId(session1.getId());
+		assertTrue(idManager.idInUse(clusterId));
+		assertFalse(idManager.idInUse(clusterId + "x"));
+		
+		// the filter rebuilt from the index still knows the sessions
+		idManager.rebuildIdFilter();
+		assertTrue(idManager.idInUse(clusterId));
+		assertFalse(idManager.idInUse(clusterId + "x"));
+	}
+	
+	public void testRequestedSessionId() throws Exception {
+		
+		final String requestedId = session1.getId();
+		TestHttpRequest requested = new TestHttpRequest() {
+			@Override
+			public String getRequestedSessionId() {
+				return requestedId;
+			}
+		};
+		assertEquals(idManager.getClusterId(requestedId), idManager.newSessionId(requested, System.currentTimeMillis()));
+		
+		// a stale requested id is looked up once, then a new id generated
+		memcached.delete(idManager.getClusterId(requestedId)).get();
+		long reads = idManager.getStats().getCount(MemcachedStats.Operation.GET);
+		String newId = idManager.newSessionId(requested, System.currentTimeMillis());
+		assertFalse(idManager.getClusterId(requestedId).equals(newId));
+		assertEquals(reads + 1, idManager.getStats().getCount(MemcachedStats.Operation.GET));
+	}
+	
 	public void testInvalidateSession() {
 		
 		sessionManager.invalidateSessions();
@@ -102,6 +146,87 @@ public class TwoSessionInstancesTest extends TestCase {
 		assertEquals(2000, memcached.get(session2.getId() + "/foo"));
 	}
 	
+	public void testInvalidateAcrossContexts() throws Exception {
+		
+		MemcachedSessionManager otherManager = new MemcachedSessionManager();
+		otherManager.setIdManager(idManager);
+		SessionHandler otherHandler = new SessionHandler(otherManager);
+		otherManager.setSessionHandler(otherHandler);
+		ContextHandler otherContext = new ContextHandler("/other");
+		otherContext.setHandler(otherHandler);
+		otherContext.start();
+		
+		final int[] destroyed = new int[2];
+		sessionManager.addEventListener(new HttpSessionListener() {
+			public void sessionCreated(HttpSessionEvent event) {
+			}
+			public void sessionDestroyed(HttpSessionEvent event) {
+				destroyed[0]++;
+			}
+		});
+		otherManager.addEventListener(new HttpSessionListener() {
+			public void sessionCreated(HttpSessionEvent event) {
+			}
+			public void sessionDestroyed(HttpSessionEvent event) {
+				destroyed[1]++;
+			}
+		});
+		
+		try {
+			session1.setAttribute("bound", new BoundValue());
+			sessionManager.complete(session1);
+			assertNotNull(otherManager.getHttpSession(session1.getId()));
+			BoundValue.unbound = 0;
+			long reads = countReads(sessionManager) + countReads(otherManager);
+			
+			session1.invalidate();
+			
+			// the info and the bound value are read once for both contexts
+			assertEquals(reads + 2, countReads(sessionManager) + countReads(otherManager));
+			
+			assertNull(memcached.get(session1.getId()));
+			assertNull(memcached.get(session1.getId() + "/foo"));
+			assertNull(memcached.get(session1.getId() + "/bound"));
+			assertNull(sessionManager.getHttpSession(session1.getId()));
+			assertNull(otherManager.getHttpSession(session1.getId()));
+			assertEquals(2000, otherManager.getHttpSession(session2.getId()).getAttribute("foo"));
+			assertEquals(1, destroyed[0]);
+			assertEquals(1, destroyed[1]);
+			assertEquals(2, BoundValue.unbound);
+		} finally {
+			otherContext.stop();
+		}
+	}
+	
+	
+	public void testInvalidateWithoutContexts() throws Exception {
+		
+		server.stop();
+		idManager.invalidateAll(session1.getId());
+		
+		assertNull(memcached.get(session1.getId()));
+		assertNull(memcached.get(session1.getId() + "/foo"));
+		assertEquals(2000, memcached.get(session2.getId() + "/foo"));
+	}
+	
+	private static long countReads(MemcachedSessionManager manager) {
+		MemcachedStats stats = manager.getStats();
+		return stats.getCount(MemcachedStats.Operation.GET) + stats.getCount(MemcachedStats.Operation.GET_BULK);
+	}
+	
+	static class BoundValue implements HttpSessionBindingListener, Serializable {
+		
+		private static final long serialVersionUID = 1L;
+		
+		static int unbound;
+		
+		public void valueBound(HttpSessionBindingEvent event) {
+		}
+		
+		public void valueUnbound(HttpSessionBindingEvent event) {
+			unbound++;
+		}
+	}
 	
 	static class TestHttpRequest implements HttpServletRequest {
 